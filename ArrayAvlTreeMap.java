@@ -0,0 +1,731 @@
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * AVL tree map that keeps its nodes in parallel arrays instead of
+ * one object per node.
+ *
+ * A node is an int index: its key and value sit in flat Object
+ * arrays and its links and height in int arrays, so the tree itself
+ * is a handful of arrays however many entries it holds. That saves
+ * the per-node object headers and leaves the garbage collector only
+ * the keys and values to trace. Index 0 is the empty tree, with
+ * height -1. Slots of removed nodes are chained into a free list
+ * (through the left array) and reused before the arrays grow.
+ *
+ * Balancing is the same as in AvlTreeMap: updates walk down once,
+ * remembering the path, and rebalance on the way back up until a
+ * subtree is as high as it was before.
+ * @param <K> Key values.
+ * @param <V> Values held.
+ */
+public class ArrayAvlTreeMap<K extends Comparable<? super K>, V>
+        implements OrderedMap<K, V> {
+
+    private static final int nil = 0;
+    private static final int start = 16;
+
+    // Longest possible path: an AVL tree of height 63 would need
+    // more than 2^43 nodes.
+    private static final int maxDepth = 64;
+
+    private Object[] keys;
+    private Object[] values;
+    private int[] left;
+    private int[] right;
+    private int[] height;
+
+    private int root;
+    private int size;
+    private int next;
+    private int free;
+    private int modCount;
+
+    // Nodes from the root down to the one being changed, and
+    // how many of them there are.
+    private final int[] path = new int[maxDepth];
+    private int depth;
+
+    /**
+     * Default constructor.
+     */
+    public ArrayAvlTreeMap() {
+        this(start);
+    }
+
+    /**
+     * Make an empty map with room for the given number of keys
+     * before the arrays have to grow.
+     * @param expectedSize keys to make room for.
+     */
+    public ArrayAvlTreeMap(int expectedSize) {
+        int cap = Math.max(expectedSize + 1, 2);
+        this.keys = new Object[cap];
+        this.values = new Object[cap];
+        this.left = new int[cap];
+        this.right = new int[cap];
+        this.height = new int[cap];
+        this.height[nil] = -1;
+        this.root = nil;
+        this.next = 1;
+        this.free = nil;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K key(int n) {
+        return (K) this.keys[n];
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int n) {
+        return (V) this.values[n];
+    }
+
+    /**
+     * Take a slot for a new leaf, from the free list if possible.
+     * @param k key to enter.
+     * @param v value to enter.
+     * @return slot of the new node.
+     */
+    private int allocate(K k, V v) {
+        int n = this.free;
+        if (n != nil) {
+            this.free = this.left[n];
+        } else {
+            if (this.next == this.keys.length) {
+                this.grow();
+            }
+            n = this.next++;
+        }
+        this.keys[n] = k;
+        this.values[n] = v;
+        this.left[n] = nil;
+        this.right[n] = nil;
+        this.height[n] = 0;
+        return n;
+    }
+
+    /**
+     * Put a removed node's slot on the free list.
+     * @param n slot to release.
+     */
+    private void release(int n) {
+        this.keys[n] = null;
+        this.values[n] = null;
+        this.left[n] = this.free;
+        this.free = n;
+    }
+
+    /**
+     * Double the capacity of all the arrays.
+     */
+    private void grow() {
+        int cap = 2 * this.keys.length;
+        this.keys = Arrays.copyOf(this.keys, cap);
+        this.values = Arrays.copyOf(this.values, cap);
+        this.left = Arrays.copyOf(this.left, cap);
+        this.right = Arrays.copyOf(this.right, cap);
+        this.height = Arrays.copyOf(this.height, cap);
+    }
+
+    /**
+     * Find the node with that key.
+     * @param k key to look for.
+     * @return node with that key, or nil.
+     */
+    private int find(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        int n = this.root;
+        while (n != nil) {
+            int cmp = k.compareTo(this.key(n));
+            if (cmp < 0) {
+                n = this.left[n];
+            } else if (cmp > 0) {
+                n = this.right[n];
+            } else {
+                return n;
+            }
+        }
+        return nil;
+    }
+
+    /**
+     * Walk down to the node with the given key, recording the
+     * nodes above it (or above where it would go) in path.
+     * @param k key to look for.
+     * @return node with key k, or nil.
+     */
+    private int descend(K k) {
+        int n = this.root;
+        int d = 0;
+        while (n != nil) {
+            int cmp = k.compareTo(this.key(n));
+            if (cmp == 0) {
+                break;
+            }
+            this.path[d++] = n;
+            n = cmp < 0 ? this.left[n] : this.right[n];
+        }
+        this.depth = d;
+        return n;
+    }
+
+    @Override
+    public boolean has(K k) {
+        return k != null && this.find(k) != nil;
+    }
+
+    @Override
+    public V get(K k) throws IllegalArgumentException {
+        int n = this.find(k);
+        if (n == nil) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        return this.value(n);
+    }
+
+    @Override
+    public V getOrDefault(K k, V d) {
+        int n = this.find(k);
+        return n == nil ? d : this.value(n);
+    }
+
+    @Override
+    public void put(K k, V v) throws IllegalArgumentException {
+        int n = this.find(k);
+        if (n == nil) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        this.values[n] = v;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void insert(K k, V v) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (this.descend(k) != nil) {
+            throw new IllegalArgumentException("Key already in map");
+        }
+        this.attach(this.allocate(k, v));
+        this.size += 1;
+        this.modCount++;
+    }
+
+    @Override
+    public V remove(K k) throws IllegalArgumentException {
+        return this.take(k, true);
+    }
+
+    @Override
+    public V removeIfPresent(K k) throws IllegalArgumentException {
+        return this.take(k, false);
+    }
+
+    /**
+     * Single descent shared by remove() and removeIfPresent().
+     * @param k The key.
+     * @param sure true if a missing key is an error.
+     * @return value removed, or null if there was none.
+     */
+    private V take(K k, boolean sure) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int n = this.descend(k);
+        if (n == nil) {
+            if (sure) {
+                throw new IllegalArgumentException("cannot find key " + k);
+            }
+            return null;
+        }
+        V v = this.value(n);
+        this.unlink(n);
+        this.size -= 1;
+        this.modCount++;
+        return v;
+    }
+
+    /**
+     * Hang a new leaf below the end of path and rebalance.
+     * @param leaf node to add.
+     */
+    private void attach(int leaf) {
+        if (this.depth == 0) {
+            this.root = leaf;
+            return;
+        }
+        int parent = this.path[this.depth - 1];
+        if (this.key(leaf).compareTo(this.key(parent)) < 0) {
+            this.left[parent] = leaf;
+        } else {
+            this.right[parent] = leaf;
+        }
+        this.retrace();
+    }
+
+    /**
+     * Remove a node found by descend() and rebalance. A node with
+     * two children takes over the key and value of its predecessor,
+     * whose slot is removed instead.
+     * @param n node to be removed.
+     */
+    private void unlink(int n) {
+        if (this.left[n] != nil && this.right[n] != nil) {
+            this.path[this.depth++] = n;
+            int m = this.left[n];
+            while (this.right[m] != nil) {
+                this.path[this.depth++] = m;
+                m = this.right[m];
+            }
+            this.keys[n] = this.keys[m];
+            this.values[n] = this.values[m];
+            n = m;
+        }
+
+        int parent = this.depth == 0 ? nil : this.path[this.depth - 1];
+        this.relink(parent, n, this.left[n] != nil ? this.left[n] : this.right[n]);
+        this.release(n);
+        this.retrace();
+    }
+
+    /**
+     * Walk back up path, fixing heights and balance. Once a subtree
+     * ends up as high as it was before, nothing above it can be out
+     * of balance.
+     */
+    private void retrace() {
+        for (int i = this.depth - 1; i >= 0; i--) {
+            int n = this.path[i];
+            int before = this.height[n];
+            int m = this.balanceFix(n);
+            this.relink(i == 0 ? nil : this.path[i - 1], n, m);
+            if (this.height[m] == before) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replace a child of a node.
+     * @param parent node to change, or nil for the root.
+     * @param old current child.
+     * @param n new child.
+     */
+    private void relink(int parent, int old, int n) {
+        if (parent == nil) {
+            this.root = n;
+        } else if (this.left[parent] == old) {
+            this.left[parent] = n;
+        } else {
+            this.right[parent] = n;
+        }
+    }
+
+    /**
+     * Balance factor of node.
+     * @param n node to find balance of.
+     * @return balance.
+     */
+    private int balance(int n) {
+        return this.height[this.left[n]] - this.height[this.right[n]];
+    }
+
+    /**
+     * Recompute height of node from its children.
+     * @param n node to fix.
+     */
+    private void fixHeight(int n) {
+        this.height[n] = 1 + Math.max(this.height[this.left[n]], this.height[this.right[n]]);
+    }
+
+    /**
+     * Fix balance of tree.
+     * @param n node to check balance of.
+     * @return new node position.
+     */
+    private int balanceFix(int n) {
+        if (this.balance(n) > 1) {
+            if (this.balance(this.left[n]) < 0) {
+                this.left[n] = this.rotateLeft(this.left[n]);
+            }
+            n = this.rotateRight(n);
+        } else if (this.balance(n) < -1) {
+            if (this.balance(this.right[n]) > 0) {
+                this.right[n] = this.rotateRight(this.right[n]);
+            }
+            n = this.rotateLeft(n);
+        }
+        this.fixHeight(n);
+        return n;
+    }
+
+    /**
+     * Rotate tree right.
+     * @param n node to rotate from.
+     * @return new node in that position.
+     */
+    private int rotateRight(int n) {
+        int temp = this.left[n];
+        this.left[n] = this.right[temp];
+        this.right[temp] = n;
+        this.fixHeight(n);
+        this.fixHeight(temp);
+        return temp;
+    }
+
+    /**
+     * Rotate tree left.
+     * @param n node to rotate from.
+     * @return the new node in that position.
+     */
+    private int rotateLeft(int n) {
+        int temp = this.right[n];
+        this.right[n] = this.left[temp];
+        this.left[temp] = n;
+        this.fixHeight(n);
+        this.fixHeight(temp);
+        return temp;
+    }
+
+    @Override
+    public V putIfAbsent(K k, V v) {
+        return this.update(k, key -> v, (key, old) -> old != null ? old : v, true);
+    }
+
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return this.update(k, f, (key, old) -> old != null ? old : f.apply(key), false);
+    }
+
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.update(k, key -> f.apply(key, null), f, false);
+    }
+
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        return this.update(k, key -> v, (key, old) -> f.apply(old, v), false);
+    }
+
+    /**
+     * Single descent shared by the compound operations. A missing
+     * key gets a node holding absent's result, an existing one has
+     * its value replaced by present's result; a null result means
+     * no node.
+     * @param k The key.
+     * @param absent Value for a missing key.
+     * @param present New value for an existing key.
+     * @param before true to return the value before, else after.
+     * @return Value before or after the update, or null.
+     */
+    private V update(K k, Function<? super K, ? extends V> absent,
+                     BiFunction<? super K, ? super V, ? extends V> present,
+                     boolean before) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        int n = this.descend(k);
+        int expected = this.modCount;
+        if (n == nil) {
+            V v = absent.apply(k);
+            this.checkUnchanged(expected);
+            if (v != null) {
+                this.descend(k);
+                this.attach(this.allocate(k, v));
+                this.size += 1;
+                this.modCount++;
+            }
+            return before ? null : v;
+        }
+
+        V old = this.value(n);
+        V v = present.apply(k, old);
+        this.checkUnchanged(expected);
+        if (v == null) {
+            this.descend(k);
+            this.unlink(n);
+            this.size -= 1;
+            this.modCount++;
+        } else {
+            this.values[n] = v;
+        }
+        return before ? old : v;
+    }
+
+    /**
+     * Compound operations must not have their functions add or
+     * remove keys, since the path found before (and even the
+     * arrays) would no longer be valid. A function may still look
+     * keys up and so overwrite path, which is why update() walks
+     * down again before changing the tree.
+     * @param expected modCount before the function ran.
+     */
+    private void checkUnchanged(int expected) {
+        if (this.modCount != expected) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    @Override
+    public K first() {
+        return this.end(false);
+    }
+
+    @Override
+    public K last() {
+        return this.end(true);
+    }
+
+    /**
+     * Smallest or largest key.
+     * @param largest true for the largest.
+     * @return the key, or null if empty.
+     */
+    private K end(boolean largest) {
+        int n = this.root;
+        if (n == nil) {
+            return null;
+        }
+        int[] side = largest ? this.right : this.left;
+        while (side[n] != nil) {
+            n = side[n];
+        }
+        return this.key(n);
+    }
+
+    @Override
+    public K floor(K k) {
+        return this.nearest(k, true, true);
+    }
+
+    @Override
+    public K ceiling(K k) {
+        return this.nearest(k, false, true);
+    }
+
+    @Override
+    public K lower(K k) {
+        return this.nearest(k, true, false);
+    }
+
+    @Override
+    public K higher(K k) {
+        return this.nearest(k, false, false);
+    }
+
+    /**
+     * Closest key on one side of k.
+     * @param k key to compare against.
+     * @param below true to look for smaller keys, else larger ones.
+     * @param inclusive true if k itself qualifies.
+     * @return closest key, or null if there is none.
+     */
+    private K nearest(K k, boolean below, boolean inclusive) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        int n = this.root;
+        int best = nil;
+        while (n != nil) {
+            int cmp = k.compareTo(this.key(n));
+            if (cmp == 0 && inclusive) {
+                return this.key(n);
+            }
+            if (below ? cmp > 0 : cmp >= 0) {
+                if (below) {
+                    best = n;
+                }
+                n = this.right[n];
+            } else {
+                if (!below) {
+                    best = n;
+                }
+                n = this.left[n];
+            }
+        }
+        return best == nil ? null : this.key(best);
+    }
+
+    @Override
+    public Iterable<K> subMap(K from, K to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("from is greater than to");
+        }
+        return () -> new KeyIterator(from, to, false);
+    }
+
+    @Override
+    public Iterable<K> headMap(K to) {
+        if (to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return () -> new KeyIterator(null, to, false);
+    }
+
+    @Override
+    public Iterable<K> tailMap(K from) {
+        if (from == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return () -> new KeyIterator(from, null, false);
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new KeyIterator(null, null, false);
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+        return new KeyIterator(null, null, true);
+    }
+
+    /**
+     * Lazy in-order iterator over the keys from lo (inclusive)
+     * to hi (exclusive), keeping the nodes still to be visited
+     * in an int stack.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private final int[] stack = new int[maxDepth];
+        private int top;
+        private final K lo;
+        private final K hi;
+        private final boolean descending;
+        private int expected;
+        private K last;
+
+        KeyIterator(K lo, K hi, boolean descending) {
+            this.lo = lo;
+            this.hi = hi;
+            this.descending = descending;
+            this.expected = modCount;
+            if (descending) {
+                this.seek(hi, false);
+            } else {
+                this.seek(lo, true);
+            }
+        }
+
+        /**
+         * Stack the path to the first key at or past from, in
+         * iteration order.
+         * @param from key to start at, or null for the very first.
+         * @param inclusive true if from itself may come next.
+         */
+        private void seek(K from, boolean inclusive) {
+            int[] near = this.descending ? right : left;
+            int[] far = this.descending ? left : right;
+            int n = root;
+            while (n != nil) {
+                int cmp = from == null ? 0 : key(n).compareTo(from);
+                if (this.descending) {
+                    cmp = -cmp;
+                }
+                if (from == null || cmp > 0 || (cmp == 0 && inclusive)) {
+                    this.stack[this.top++] = n;
+                    n = near[n];
+                } else {
+                    n = far[n];
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.top == 0) {
+                return false;
+            }
+            K k = key(this.stack[this.top - 1]);
+            return this.descending
+                ? this.lo == null || k.compareTo(this.lo) >= 0
+                : this.hi == null || k.compareTo(this.hi) < 0;
+        }
+
+        @Override
+        public K next() {
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int n = this.stack[--this.top];
+            int[] near = this.descending ? right : left;
+            int m = this.descending ? left[n] : right[n];
+            while (m != nil) {
+                this.stack[this.top++] = m;
+                m = near[m];
+            }
+            this.last = key(n);
+            return this.last;
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            // Removal rotates nodes and may move keys between
+            // slots, so find the way back from the root.
+            ArrayAvlTreeMap.this.remove(this.last);
+            this.expected = modCount;
+            this.top = 0;
+            this.seek(this.last, false);
+            this.last = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        int[] stack = new int[maxDepth];
+        int top = 0;
+        int n = this.root;
+        while (n != nil || top > 0) {
+            while (n != nil) {
+                stack[top++] = n;
+                n = this.left[n];
+            }
+            n = stack[--top];
+            s.append(this.keys[n]);
+            s.append(" : ");
+            s.append(this.values[n]);
+            s.append(", ");
+            n = this.right[n];
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+
+}
@@ -2,13 +2,27 @@
 
 import DS.Map;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.ArrayList;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import javafx.util.Pair;
 
 
 /**
  * Class to implement an AVL Tree Map.
+ *
+ * snapshot() gives a read-only view of the map as it is, in O(1)
+ * time. Every node remembers the epoch it was made in, and taking a
+ * snapshot starts a new epoch, so the nodes of the view are never
+ * changed again: an update copies the nodes on its path that are
+ * from an older epoch and leaves the originals to the snapshot.
+ * Without snapshots no node is ever copied.
  * @param <K> Key values
  * @param <V> Values held.
  */
@@ -25,6 +39,8 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
         K key;
         V value;
         int height;
+        int count;
+        int epoch;
 
         /**
          * Construct new node.
@@ -33,6 +49,8 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
          */
         Node(K k, V v) {
             this.height = 0;
+            this.count = 1;
+            this.epoch = AvlTreeMap.this.epoch;
             this.key = k;
             this.value = v;
             this.left = null;
@@ -48,7 +66,31 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
 
     private Node root;
     private int size;
-    private StringBuilder stringBuilder;
+
+    // writeTo() hands its text on in pieces of about this size.
+    private static final int writeChunk = 1 << 13;
+
+    // Bumped whenever a key is added or removed, so that
+    // iterators can fail fast.
+    private int modCount;
+
+    // Nodes not yet placed by build(), chained by right links.
+    private Node pending;
+
+    // Nodes from before this epoch may be shared with a snapshot.
+    private int epoch;
+    private boolean frozen;
+
+    // Finger search: the path to the node last looked up, with the
+    // (exclusive) bounds of the keys in each subtree on it. Only
+    // good while modCount is still fingerMod.
+    private static final int maxDepth = 64;
+    private boolean fingerSearch;
+    private Object[] fingerNodes;
+    private Object[] fingerLo;
+    private Object[] fingerHi;
+    private int fingerDepth;
+    private int fingerMod;
 
     /**
      * Default constructor.
@@ -58,6 +100,99 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
         this.size = 0;
     }
 
+    /**
+     * Build a map from pairs given in increasing key order, reading
+     * until the iterator runs out. Takes O(n) time instead of the
+     * O(n log n) of n inserts, and the tree comes out as balanced
+     * as possible, with no rotations done.
+     * @param pairs key/value pairs, keys strictly increasing.
+     * @param <K> Key values.
+     * @param <V> Values held.
+     * @return map holding the pairs.
+     * @throws IllegalArgumentException if a key is null or out of order.
+     */
+    public static <K extends Comparable<? super K>, V> AvlTreeMap<K, V> bulkLoad(
+            Iterator<? extends Pair<? extends K, ? extends V>> pairs)
+            throws IllegalArgumentException {
+        return bulkLoad(pairs, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Build a map from the first n pairs (or all, if there are
+     * fewer) of an iterator in increasing key order, in O(n) time.
+     * @param pairs key/value pairs, keys strictly increasing.
+     * @param n most pairs to read.
+     * @param <K> Key values.
+     * @param <V> Values held.
+     * @return map holding the pairs.
+     * @throws IllegalArgumentException if a key is null or out of order.
+     */
+    public static <K extends Comparable<? super K>, V> AvlTreeMap<K, V> bulkLoad(
+            Iterator<? extends Pair<? extends K, ? extends V>> pairs, int n)
+            throws IllegalArgumentException {
+        AvlTreeMap<K, V> map = new AvlTreeMap<K, V>();
+        map.load(pairs, n);
+        return map;
+    }
+
+    /**
+     * Read pairs for bulkLoad() into this empty map.
+     * @param pairs key/value pairs, keys strictly increasing.
+     * @param n most pairs to read.
+     */
+    private void load(Iterator<? extends Pair<? extends K, ? extends V>> pairs, int n) {
+        // Nodes are chained through their right links as they
+        // arrive, so the count need not be known up front and no
+        // buffer is needed besides the nodes themselves.
+        Node tail = null;
+        int count = 0;
+        while (count < n && pairs.hasNext()) {
+            Pair<? extends K, ? extends V> p = pairs.next();
+            K k = p.getKey();
+            if (k == null) {
+                throw new IllegalArgumentException("cannot handle null key");
+            }
+            if (tail != null && tail.key.compareTo(k) >= 0) {
+                throw new IllegalArgumentException("keys out of order at " + k);
+            }
+            Node node = new Node(k, p.getValue());
+            if (tail == null) {
+                this.pending = node;
+            } else {
+                tail.right = node;
+            }
+            tail = node;
+            count++;
+        }
+
+        this.root = this.build(count);
+        this.size = count;
+        this.modCount++;
+    }
+
+    /**
+     * Turn the next n nodes of the pending chain into a subtree,
+     * taking them in order: left half, root, right half. The
+     * halves differ by at most one node, so the heights of any
+     * two siblings differ by at most one.
+     * @param n number of nodes.
+     * @return head of subtree.
+     */
+    private Node build(int n) {
+        if (n == 0) {
+            return null;
+        }
+
+        Node left = this.build((n - 1) / 2);
+        Node n0 = this.pending;
+        this.pending = n0.right;
+        n0.left = left;
+        n0.right = this.build(n - 1 - (n - 1) / 2);
+        n0.height = 1 + max(n0);
+        n0.count = n;
+        return n0;
+    }
+
 
     //@Override
     public void insert(String s, ArrayList<String> strings) throws IllegalArgumentException {
@@ -84,6 +219,36 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
         return false;
     }
 
+    /**
+     * Read-only view of the map as it is now, taken in O(1) time.
+     * Later changes to this map copy the nodes they touch instead,
+     * so the view never changes, and once handed to other threads
+     * (through any safe publication) it can be read by them while
+     * this map is being updated.
+     * @return snapshot of the map.
+     */
+    public AvlTreeMap<K, V> snapshot() {
+        if (this.frozen) {
+            return this;
+        }
+        AvlTreeMap<K, V> s = new AvlTreeMap<K, V>();
+        s.root = this.root;
+        s.size = this.size;
+        s.frozen = true;
+        this.epoch++;
+        return s;
+    }
+
+    /**
+     * Refuse changes to a snapshot.
+     * @throws UnsupportedOperationException if this is a snapshot.
+     */
+    private void checkWritable() {
+        if (this.frozen) {
+            throw new UnsupportedOperationException("snapshot is read-only");
+        }
+    }
+
     /**
      * Size of map.
      * @return
@@ -117,6 +282,10 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
             throw new IllegalArgumentException("cannot handle null key.");
         }
 
+        if (this.fingerSearch) {
+            return this.fingerFind(k);
+        }
+
         Node n = this.root;
 
         while (n != null) {
@@ -132,6 +301,86 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
         return null;
     }
 
+    /**
+     * Turn finger search on or off. With it on, lookups (get, has,
+     * put, getOrDefault) start from the lowest node on the path of
+     * the previous lookup whose subtree can hold the key, instead
+     * of from the root, so a lookup near the previous key costs
+     * about O(log d) for a rank distance d rather than O(log n).
+     * Any change to the tree makes the next lookup start at the
+     * root again.
+     * @param on true to remember the last lookup path.
+     */
+    public void setFingerSearch(boolean on) {
+        this.fingerSearch = on;
+        this.fingerDepth = 0;
+        if (on && this.fingerNodes == null) {
+            this.fingerNodes = new Object[maxDepth];
+            this.fingerLo = new Object[maxDepth];
+            this.fingerHi = new Object[maxDepth];
+        }
+    }
+
+    /**
+     * Find the node with that key, climbing the remembered path
+     * only as far as needed and remembering the new one.
+     * @param k key to look for.
+     * @return Node with that key, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private Node fingerFind(K k) {
+        int d = this.fingerMod == this.modCount ? this.fingerDepth : 0;
+        while (d > 0 && !this.within(k, d - 1)) {
+            d--;
+        }
+
+        Node n = this.root;
+        K lo = null;
+        K hi = null;
+        if (d > 0) {
+            d--;
+            n = (Node) this.fingerNodes[d];
+            lo = (K) this.fingerLo[d];
+            hi = (K) this.fingerHi[d];
+        }
+
+        while (n != null) {
+            this.fingerNodes[d] = n;
+            this.fingerLo[d] = lo;
+            this.fingerHi[d] = hi;
+            d++;
+
+            int cmp = k.compareTo(n.key);
+            if (cmp < 0) {
+                hi = n.key;
+                n = n.left;
+            } else if (cmp > 0) {
+                lo = n.key;
+                n = n.right;
+            } else {
+                break;
+            }
+        }
+        this.fingerDepth = d;
+        this.fingerMod = this.modCount;
+        return n;
+    }
+
+    /**
+     * Check if a key lies within the bounds of a subtree
+     * on the finger path.
+     * @param k key to check.
+     * @param d depth of the subtree.
+     * @return true if the subtree can hold k.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean within(K k, int d) {
+        K lo = (K) this.fingerLo[d];
+        K hi = (K) this.fingerHi[d];
+        return (lo == null || k.compareTo(lo) > 0)
+            && (hi == null || k.compareTo(hi) < 0);
+    }
+
     /**
      * Check if map has node with key.
      * @param k The key.
@@ -181,7 +430,11 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
         if (k == null) {
             throw new IllegalArgumentException("Cannot handle null key");
         }
+        this.checkWritable();
         Node n = this.findForSure(k);
+        if (n.epoch != this.epoch) {
+            n = this.descend(k, null);
+        }
         n.value = v;
     }
 
@@ -201,7 +454,8 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
     }
 
     /**
-     * Method to add node.
+     * Method to add node. Walks down once, remembering the path,
+     * then fixes balance on the way back up.
      * @param k The key.
      * @param v The value to be associated with k.
      * @throws IllegalArgumentException
@@ -213,38 +467,133 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
 
             throw new IllegalArgumentException("cannot handle null key");
         }
-        if (this.has(k)) {
+        this.checkWritable();
+        ArrayList<Node> path = this.newPath();
+        if (this.descend(k, path) != null) {
             throw new IllegalArgumentException("Key already in map");
         }
-        this.root = this.insert(this.root, k, v);
+        this.attach(path, new Node(k, v));
         this.size += 1;
+        this.modCount++;
+    }
+
+    /**
+     * Room for the nodes on a path from the root down.
+     * @return empty path.
+     */
+    private ArrayList<Node> newPath() {
+        return new ArrayList<Node>(height(this.root) + 2);
     }
 
     /**
-     * Find where to insert node.
-     * @param n node at start (root).
-     * @param k key to enter.
-     * @param v value to enter.
-     * @return new node and nodes above.
+     * Walk down to the node with the given key, making sure that
+     * it and every node above it belong to this epoch, so that they
+     * can be changed.
+     * @param k key to look for.
+     * @param path if not null, gets the nodes above the one found,
+     *     or above where k would go.
+     * @return node with key k, or null if not mapped.
      */
-    private Node insert(Node n, K k, V v) {
+    private Node descend(K k, ArrayList<Node> path) {
+        Node parent = null;
+        Node n = this.root;
+        while (n != null) {
+            Node c = this.own(n);
+            if (c != n) {
+                this.relink(parent, n, c);
+                this.fingerDepth = 0;
+                n = c;
+            }
 
-        if (n == null) {
-            return new Node(k, v);
+            int cmp = k.compareTo(n.key);
+            if (cmp == 0) {
+                return n;
+            }
+            if (path != null) {
+                path.add(n);
+            }
+            parent = n;
+            n = cmp < 0 ? n.left : n.right;
         }
+        return null;
+    }
 
-        int cmp = k.compareTo(n.key);
-        if (cmp < 0) {
-            n.left = this.insert(n.left, k, v);
-        } else if (cmp > 0) {
-            n.right = this.insert(n.right, k, v);
+    /**
+     * The node itself if it belongs to this epoch, else a copy
+     * that does; the caller links the copy in its place.
+     * @param n node about to be changed.
+     * @return node that may be changed.
+     */
+    private Node own(Node n) {
+        if (n.epoch == this.epoch) {
+            return n;
+        }
+        Node c = new Node(n.key, n.value);
+        c.left = n.left;
+        c.right = n.right;
+        c.height = n.height;
+        c.count = n.count;
+        return c;
+    }
+
+    /**
+     * Hang a new leaf below the end of a path and rebalance.
+     * @param path nodes from the root to the leaf's parent.
+     * @param leaf node to add.
+     */
+    private void attach(ArrayList<Node> path, Node leaf) {
+        if (path.isEmpty()) {
+            this.root = leaf;
         } else {
-            throw new IllegalArgumentException("duplicate key " + k);
+            Node parent = path.get(path.size() - 1);
+            if (leaf.key.compareTo(parent.key) < 0) {
+                parent.left = leaf;
+            } else {
+                parent.right = leaf;
+            }
         }
+        this.retrace(path, 1);
+    }
 
-        n.height = 1 + max(n);
+    /**
+     * Walk back up a path below which a node was added or removed,
+     * fixing heights and balance. Once a subtree ends up as high as
+     * it was before, nothing above it can be out of balance, so the
+     * rest of the path only gets its counts adjusted.
+     * @param path nodes from the root down.
+     * @param delta change in the number of nodes below the path.
+     */
+    private void retrace(ArrayList<Node> path, int delta) {
+        int i = path.size() - 1;
+        while (i >= 0) {
+            Node n = path.get(i);
+            int before = n.height;
+            Node m = this.balanceFix(n);
+            i--;
+            this.relink(i < 0 ? null : path.get(i), n, m);
+            if (m.height == before) {
+                break;
+            }
+        }
+        for (; i >= 0; i--) {
+            path.get(i).count += delta;
+        }
+    }
 
-        return balanceFix(n);
+    /**
+     * Replace a child of a node.
+     * @param parent node to change, or null for the root.
+     * @param old current child.
+     * @param n new child.
+     */
+    private void relink(Node parent, Node old, Node n) {
+        if (parent == null) {
+            this.root = n;
+        } else if (parent.left == old) {
+            parent.left = n;
+        } else {
+            parent.right = n;
+        }
     }
 
     /**
@@ -269,6 +618,7 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
 
         }
         n.height = 1 + max(n);
+        this.recount(n);
         return n;
     }
 
@@ -303,17 +653,41 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
         return n.height;
     }
 
+    /**
+     * Number of nodes in subtree.
+     * @param n head of subtree.
+     * @return node count.
+     */
+    private int count(Node n) {
+        if (n == null) {
+            return 0;
+        }
+        return n.count;
+    }
+
+    /**
+     * Recompute node count from the children.
+     * @param n node to fix.
+     */
+    private void recount(Node n) {
+        n.count = 1 + count(n.left) + count(n.right);
+    }
+
     /**
      * Rotate tree right.
+
      * @param n node to rotate from.
      * @return new node in that position.
      */
     private Node rotateRight(Node n) {
-        Node temp = n.left;
+        n = this.own(n);
+        Node temp = this.own(n.left);
         n.left = temp.right;
         temp.right = n;
         n.height = 1 + max(n); //1 + max(n.left, n.right);
         temp.height = 1 + max(temp);
+        this.recount(n);
+        this.recount(temp);
         return temp;
     }
 
@@ -323,132 +697,555 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
      * @return the new node in that position.
      */
     private Node rotateLeft(Node n) {
-        Node temp = n.right;
+        n = this.own(n);
+        Node temp = this.own(n.right);
         n.right = temp.left;
         temp.left = n;
         n.height = 1 + max(n);
         temp.height = 1 + max(temp);
+        this.recount(n);
+        this.recount(temp);
         return temp;
     }
 
     /**
-     * Find the node to be removed.
-     * @param n Node to start from (root)
-     * @param k key to find.
-     * @return Nodes above.
-     * @throws IllegalArgumentException
+     * Remove a node and rebalance. A node with two children is
+     * replaced by its predecessor, whose path gets added on.
+     * @param path nodes from the root to the parent of n.
+     * @param n node to be removed.
      */
-    private Node removeNow(Node n, K k) throws IllegalArgumentException {
+    private void unlink(ArrayList<Node> path, Node n) {
+        Node parent = path.isEmpty() ? null : path.get(path.size() - 1);
+
+        if (n.left == null || n.right == null) {
+            this.relink(parent, n, n.left != null ? n.left : n.right);
+            this.retrace(path, -1);
+            return;
+        }
+
+        int at = path.size();
+        path.add(n);
+        Node m = this.own(n.left);
+        n.left = m;
+        while (m.right != null) {
+            path.add(m);
+            m.right = this.own(m.right);
+            m = m.right;
+        }
+        this.relink(path.get(path.size() - 1), m, m.left);
+
+        m.left = n.left;
+        m.right = n.right;
+        m.height = n.height;
+        m.count = n.count;
+        path.set(at, m);
+        this.relink(parent, n, m);
+        this.retrace(path, -1);
+    }
+
+    /**
+     * Get value of node, or a default if there is none.
+     * @param k The key.
+     * @param d Value to return if k is not mapped.
+     * @return Value of node, or d.
+     */
+    @Override
+    public V getOrDefault(K k, V d) {
+        Node n = this.find(k);
+        return n == null ? d : n.value;
+    }
+
+    /**
+     * Insert a node unless the key is already mapped.
+     * @param k The key.
+     * @param v The value to be associated with k.
+     * @return Value already associated with k, or null.
+     */
+    @Override
+    public V putIfAbsent(K k, V v) {
+        return this.update(k, key -> v, (key, old) -> old != null ? old : v, true);
+    }
+
+    /**
+     * Get value of node, adding one with the computed value first
+     * if there is none.
+     * @param k The key.
+     * @param f Computes the value for an unmapped k.
+     * @return Value now associated with k, or null.
+     */
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return this.update(k, f, (key, old) -> old != null ? old : f.apply(key), false);
+    }
+
+    /**
+     * Replace value of node by the one computed from it.
+     * @param k The key.
+     * @param f Computes the new value from k and the old value.
+     * @return Value now associated with k, or null.
+     */
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.update(k, key -> f.apply(key, null), f, false);
+    }
+
+    /**
+     * Add a node, or combine the value of an existing one with v.
+     * @param k The key.
+     * @param v The value to insert or combine.
+     * @param f Combines the old value with v.
+     * @return Value now associated with k, or null.
+     */
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        return this.update(k, key -> v, (key, old) -> f.apply(old, v), false);
+    }
+
+    /**
+     * Single descent shared by the compound operations. A missing
+     * key gets a node holding absent's result, an existing one has
+     * its value replaced by present's result; a null result means
+     * no node.
+     * @param k The key.
+     * @param absent Value for a missing key.
+     * @param present New value for an existing key.
+     * @param before true to return the value before, else after.
+     * @return Value before or after the update, or null.
+     */
+    private V update(K k, Function<? super K, ? extends V> absent,
+                     BiFunction<? super K, ? super V, ? extends V> present,
+                     boolean before) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        this.checkWritable();
+
+        ArrayList<Node> path = this.newPath();
+        Node n = this.descend(k, path);
+        int expected = this.modCount;
+        int epoch = this.epoch;
+
         if (n == null) {
-            throw new IllegalArgumentException("cannot find key");
+            V v = absent.apply(k);
+            this.checkUnchanged(expected, epoch);
+            if (v != null) {
+                this.attach(path, new Node(k, v));
+                this.size += 1;
+                this.modCount++;
+            }
+            return before ? null : v;
         }
 
-        int cmp = k.compareTo(n.key);
-        if (cmp < 0) {
-            n.left = this.removeNow(n.left, k);
-        } else if (cmp > 0) {
-            n.right = this.removeNow(n.right, k);
+        V old = n.value;
+        V v = present.apply(k, old);
+        this.checkUnchanged(expected, epoch);
+        if (v == null) {
+            this.unlink(path, n);
+            this.size -= 1;
+            this.modCount++;
         } else {
-            n = this.removeNode(n);
-            return n;
+            n.value = v;
         }
+        return before ? old : v;
+    }
 
-        n.height = 1 + max(n);
+    /**
+     * Compound operations must not have their functions add or
+     * remove keys, or take a snapshot, since the path found
+     * before would no longer be valid.
+     * @param expected modCount before the function ran.
+     * @param epoch epoch before the function ran.
+     */
+    private void checkUnchanged(int expected, int epoch) {
+        if (this.modCount != expected || this.epoch != epoch) {
+            throw new ConcurrentModificationException();
+        }
+    }
 
-        n = this.balanceFix(n);
-        return n;
+    @Override
+    public V remove(K k) {
+        return this.take(k, true);
+    }
+
+    @Override
+    public V removeIfPresent(K k) {
+        return this.take(k, false);
     }
 
     /**
-     * Remove the current node.
-     * @param n node to be removed.
-     * @return new node in that position.
+     * Single descent shared by remove() and removeIfPresent().
+     * @param k The key.
+     * @param sure true if a missing key is an error.
+     * @return Value of removed node, or null if there was none.
      */
-    private Node removeNode(Node n) {
+    private V take(K k, boolean sure) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        this.checkWritable();
 
-        if (n.left == null) {
-            return n.right;
+        ArrayList<Node> path = this.newPath();
+        Node n = this.descend(k, path);
+        if (n == null) {
+            if (sure) {
+                throw new IllegalArgumentException("cannot find key " + k);
+            }
+            return null;
+        }
 
+        this.unlink(path, n);
+        this.size -= 1;
+        this.modCount++;
+        return n.value;
+    }
+
+    /**
+     * Smallest key in the map.
+     * @return smallest key, or null if empty.
+     */
+    @Override
+    public K first() {
+        if (this.root == null) {
+            return null;
         }
-        if (n.right == null) {
-            return n.left;
+        Node n = this.root;
+        while (n.left != null) {
+            n = n.left;
+        }
+        return n.key;
+    }
 
+    /**
+     * Largest key in the map.
+     * @return largest key, or null if empty.
+     */
+    @Override
+    public K last() {
+        if (this.root == null) {
+            return null;
         }
+        return this.maxTree(this.root).key;
+    }
 
-        Node temp = n;
-        n = this.maxTree(n.left);
-        n.left = removeMax(temp.left);
-        n.right = temp.right;
-        n.height = 1 + max(n);
-        return balanceFix(n);
+    @Override
+    public K floor(K k) {
+        return this.nearest(k, true, true);
+    }
+
+    @Override
+    public K ceiling(K k) {
+        return this.nearest(k, false, true);
+    }
+
+    @Override
+    public K lower(K k) {
+        return this.nearest(k, true, false);
+    }
+
+    @Override
+    public K higher(K k) {
+        return this.nearest(k, false, false);
     }
 
     /**
-     * Shift the maximum tree in the subtree.
-     * @param n Node head of subtree.
-     * @return balanced nodes in subtree.
+     * Walk down towards k, remembering the last key passed
+     * on the wanted side of it.
+     * @param k key to start from.
+     * @param below true for keys below k, false for above.
+     * @param inclusive true if k itself counts.
+     * @return nearest key on that side, or null.
      */
-    private Node removeMax(Node n) {
-        if (n.right == null) {
-            return n.left;
+    private K nearest(K k, boolean below, boolean inclusive) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
         }
-        n.right = removeMax(n.right);
-        n.height = 1 + max(n);
-        return balanceFix(n);
 
+        Node n = this.root;
+        K best = null;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp == 0 && inclusive) {
+                return n.key;
+            }
+            if (below ? cmp > 0 : cmp >= 0) {
+                if (below) {
+                    best = n.key;
+                }
+                n = n.right;
+            } else {
+                if (!below) {
+                    best = n.key;
+                }
+                n = n.left;
+            }
+        }
+        return best;
     }
 
+    @Override
+    public Iterable<K> subMap(K from, K to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("from is greater than to");
+        }
+        return this.range(from, to);
+    }
 
     @Override
-    public V remove(K k) {
+    public Iterable<K> headMap(K to) {
+        if (to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.range(null, to);
+    }
 
-        V v = this.findForSure(k).value;
-        this.root = this.removeNow(this.root, k);
-        this.size -= 1;
-        return v;
+    @Override
+    public Iterable<K> tailMap(K from) {
+        if (from == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.range(from, null);
     }
 
-    // Recursively add keys from subtree rooted at given node
-    // into the given list.
-    private void iteratorHelper(Node n, List<K> keys) {
-        if (n == null) {
-            return;
+    /**
+     * Keys from lo (inclusive) to hi (exclusive), produced lazily,
+     * so stopping after k keys costs O(log n + k).
+     * @param lo lower bound, or null for none.
+     * @param hi upper bound, or null for none.
+     * @return keys in order.
+     */
+    private Iterable<K> range(K lo, K hi) {
+        return () -> new KeyIterator(lo, hi, false);
+    }
+
+    /**
+     * Number of keys smaller than k, found from subtree
+     * counts in one descent.
+     * @param k The key (need not be mapped).
+     * @return rank of k.
+     */
+    public int rank(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
         }
-        this.iteratorHelper(n.left, keys);
-        keys.add(n.key);
-        this.iteratorHelper(n.right, keys);
+
+        Node n = this.root;
+        int r = 0;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp <= 0) {
+                n = n.left;
+            } else {
+                r += count(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return r;
     }
 
-    //Create iterator for arraylist
+    /**
+     * Key with the given rank, i.e. the (i+1)-th smallest.
+     * @param i rank, from 0 to size() - 1.
+     * @return key with rank i.
+     */
+    public K select(int i) {
+        if (i < 0 || i >= this.size) {
+            throw new IllegalArgumentException("rank out of range " + i);
+        }
+
+        Node n = this.root;
+        while (true) {
+            int left = count(n.left);
+            if (i < left) {
+                n = n.left;
+            } else if (i > left) {
+                i -= left + 1;
+                n = n.right;
+            } else {
+                return n.key;
+            }
+        }
+    }
+
+    /**
+     * Number of keys from lo (inclusive) to hi (exclusive),
+     * the same range subMap(lo, hi) gives.
+     * @param lo lower bound.
+     * @param hi upper bound.
+     * @return count of keys in range.
+     */
+    public int countInRange(K lo, K hi) {
+        if (lo == null || hi == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (lo.compareTo(hi) >= 0) {
+            return 0;
+        }
+        return this.rank(hi) - this.rank(lo);
+    }
+
+    /**
+     * Keys in ascending order. The iterator keeps only the path
+     * to the next node, so it costs O(height) memory, and fails
+     * fast if the map is changed other than through it.
+     * @return iterator over keys.
+     */
     @Override
     public Iterator<K> iterator() {
-        List<K> keys = new ArrayList<K>();
-        this.iteratorHelper(this.root, keys);
-        return keys.iterator();
+        return new KeyIterator(null, null, false);
     }
 
-    //If we don't have a StringBuilder yet, make one;
-    // otherwise just reset it back to a clean slate.
-    private void setupStringBuilder() {
-        if (this.stringBuilder == null) {
-            this.stringBuilder = new StringBuilder();
-        } else {
-            this.stringBuilder.setLength(0);
+    /**
+     * Keys in descending order.
+     * @return iterator over keys, largest first.
+     */
+    @Override
+    public Iterator<K> descendingIterator() {
+        return new KeyIterator(null, null, true);
+    }
+
+    /**
+     * Lazy in-order iterator over the keys from lo (inclusive)
+     * to hi (exclusive), using an explicit stack of the nodes
+     * still to be visited on the path from the root.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private final ArrayDeque<Node> stack;
+        private final K lo;
+        private final K hi;
+        private final boolean descending;
+        private int expected;
+        private K last;
+
+        /**
+         * Start an iteration.
+         * @param lo lower bound, or null for none.
+         * @param hi upper bound, or null for none.
+         * @param descending true to go from largest to smallest.
+         */
+        KeyIterator(K lo, K hi, boolean descending) {
+            this.stack = new ArrayDeque<Node>();
+            this.lo = lo;
+            this.hi = hi;
+            this.descending = descending;
+            this.expected = modCount;
+            if (descending) {
+                this.seek(hi, false);
+            } else {
+                this.seek(lo, true);
+            }
+        }
+
+        /**
+         * Stack the path to the first key at or past from, in
+         * iteration order.
+         * @param from key to start at, or null for the very first.
+         * @param inclusive true if from itself may come next.
+         */
+        private void seek(K from, boolean inclusive) {
+            Node n = root;
+            while (n != null) {
+                int cmp = from == null ? 0 : n.key.compareTo(from);
+                if (this.descending) {
+                    cmp = -cmp;
+                }
+                if (from == null || cmp > 0 || (cmp == 0 && inclusive)) {
+                    this.stack.push(n);
+                    n = this.descending ? n.right : n.left;
+                } else {
+                    n = this.descending ? n.left : n.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.stack.isEmpty()) {
+                return false;
+            }
+            K k = this.stack.peek().key;
+            return this.descending
+                ? this.lo == null || k.compareTo(this.lo) >= 0
+                : this.hi == null || k.compareTo(this.hi) < 0;
+        }
+
+        @Override
+        public K next() {
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Node n = this.stack.pop();
+            Node m = this.descending ? n.left : n.right;
+            while (m != null) {
+                this.stack.push(m);
+                m = this.descending ? m.right : m.left;
+            }
+            this.last = n.key;
+            return n.key;
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            // Removal may rotate the nodes on our stack, so find
+            // the way back from the root.
+            AvlTreeMap.this.remove(this.last);
+            this.expected = modCount;
+            this.stack.clear();
+            this.seek(this.last, false);
+            this.last = null;
         }
     }
 
-    // Recursively append string representations of keys and
-    // values from subtree rooted at given node.
-    private void toStringHelper(Node n, StringBuilder s) {
-        if (n == null) {
-            return;
+    /**
+     * Write the map out as toString() would, walking the nodes in
+     * order and handing the text to out in pieces of about
+     * writeChunk chars, so a huge map never has to fit in one
+     * string.
+     * @param out where the text goes.
+     * @throws IOException if out does.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        StringBuilder s = new StringBuilder(writeChunk);
+        s.append("{");
+
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        Node n = this.root;
+        boolean first = true;
+        while (n != null || !stack.isEmpty()) {
+            while (n != null) {
+                stack.push(n);
+                n = n.left;
+            }
+            n = stack.pop();
+            if (!first) {
+                s.append(", ");
+            }
+            first = false;
+            s.append(n.key);
+            s.append(": ");
+            s.append(n.value);
+            if (s.length() >= writeChunk) {
+                out.append(s);
+                s.setLength(0);
+            }
+            n = n.right;
         }
-        this.toStringHelper(n.left, s);
-        s.append(n.key);
-        s.append(": ");
-        s.append(n.value);
-        s.append(", ");
-        this.toStringHelper(n.right, s);
+
+        s.append("}");
+        out.append(s);
     }
 
     /**
@@ -457,19 +1254,14 @@ public class AvlTreeMap<K extends Comparable<? super K>, V>
      */
     @Override
     public String toString() {
-        this.setupStringBuilder();
-        this.stringBuilder.append("{");
-
-        this.toStringHelper(this.root, this.stringBuilder);
-
-        int length = this.stringBuilder.length();
-        if (length > 1) {
-
-            this.stringBuilder.setLength(length - 2);
+        StringBuilder s = new StringBuilder();
+        try {
+            this.writeTo(s);
+        } catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new UncheckedIOException(e);
         }
-        this.stringBuilder.append("}");
-
-        return this.stringBuilder.toString();
+        return s.toString();
     }
 
 
@@ -0,0 +1,734 @@
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Ordered map from comparable keys to arbitrary values, implemented
+ * as a B+ tree.
+ *
+ * Every node keeps its keys in one array, so a lookup does a binary
+ * search within a node and then follows a single pointer down; with
+ * the default fanout of 64 a map of ten million keys is only four
+ * levels deep. Inner nodes hold separator keys only, all key/value
+ * pairs live in the leaves, and the leaves are linked both ways so
+ * that iteration and range scans walk along contiguous arrays.
+ *
+ * Every node except the root is at least half full. Insertions
+ * split full nodes on the way back up, removals borrow from or merge
+ * with a sibling, so lookups and updates are O(log n).
+ * Iterators fail fast if the map is changed other than through
+ * their own remove().
+ *
+ * @param <K> Type for keys.
+ * @param <V> Type for values.
+ */
+public class BTreeMap<K extends Comparable<? super K>, V>
+    implements OrderedMap<K, V> {
+
+    private static final int defaultFanout = 64;
+
+    // Keys in sorted order; in a leaf they are the mapped keys,
+    // in an inner node keys[i] is the smallest key that can be
+    // found below children[i + 1].
+    private abstract static class Node {
+        Object[] keys;
+        int n;
+    }
+
+    private static final class Leaf extends Node {
+        Object[] values;
+        Leaf next;
+        Leaf prev;
+
+        Leaf(int cap) {
+            this.keys = new Object[cap];
+            this.values = new Object[cap];
+        }
+    }
+
+    private static final class Inner extends Node {
+        Node[] children;
+
+        Inner(int cap) {
+            this.keys = new Object[cap];
+            this.children = new Node[cap + 1];
+        }
+    }
+
+    private final int maxKeys;
+    private final int minKeys;
+    private Node root;
+    private int size;
+    private int modCount;
+
+    // Separator handed up by the last split.
+    private Object splitKey;
+
+    // What remove(node, k) gives back when k is not there, since
+    // null may be a value.
+    private static final Object missing = new Object();
+
+    /**
+     * Make an empty map with the default fanout.
+     */
+    public BTreeMap() {
+        this(defaultFanout);
+    }
+
+    /**
+     * Make an empty map whose inner nodes have at most the
+     * given number of children.
+     * @param fanout children per inner node, at least 4.
+     * @throws IllegalArgumentException if fanout is too small.
+     */
+    public BTreeMap(int fanout) throws IllegalArgumentException {
+        if (fanout < 4) {
+            throw new IllegalArgumentException("fanout must be at least 4");
+        }
+        this.maxKeys = fanout - 1;
+        this.minKeys = this.maxKeys / 2;
+        // One spare slot lets a node overflow before it splits.
+        this.root = new Leaf(this.maxKeys + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> K key(Node node, int i) {
+        return (K) node.keys[i];
+    }
+
+    // Binary search for k among the keys of a node, with the same
+    // result convention as Arrays.binarySearch.
+    private int search(Node node, K k) {
+        int lo = 0;
+        int hi = node.n - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = k.compareTo(BTreeMap.<K>key(node, mid));
+            if (cmp > 0) {
+                lo = mid + 1;
+            } else if (cmp < 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    // Child of an inner node whose subtree may hold k.
+    private int childIndex(Inner node, K k) {
+        int i = this.search(node, k);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+
+    // Leaf whose key range covers k.
+    private Leaf leafFor(K k) {
+        Node node = this.root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            node = inner.children[this.childIndex(inner, k)];
+        }
+        return (Leaf) node;
+    }
+
+    // Leftmost or rightmost leaf.
+    private Leaf endLeaf(boolean last) {
+        Node node = this.root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            node = inner.children[last ? inner.n : 0];
+        }
+        return (Leaf) node;
+    }
+
+    // Leaf whose key range covers k.
+    private Leaf leafWith(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.leafFor(k);
+    }
+
+    @Override
+    public boolean has(K k) {
+        if (k == null) {
+            return false;
+        }
+        Leaf leaf = this.leafFor(k);
+        return this.search(leaf, k) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K k) {
+        Leaf leaf = this.leafWith(k);
+        int i = this.search(leaf, k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        return (V) leaf.values[i];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(K k, V d) {
+        Leaf leaf = this.leafWith(k);
+        int i = this.search(leaf, k);
+        return i < 0 ? d : (V) leaf.values[i];
+    }
+
+    @Override
+    public void put(K k, V v) {
+        Leaf leaf = this.leafWith(k);
+        int i = this.search(leaf, k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        leaf.values[i] = v;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void insert(K k, V v) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        Node right = this.insert(this.root, k, v);
+        if (right != null) {
+            // The root split, so the tree grows a level.
+            Inner top = new Inner(this.maxKeys + 1);
+            top.keys[0] = this.splitKey;
+            top.children[0] = this.root;
+            top.children[1] = right;
+            top.n = 1;
+            this.root = top;
+        }
+        this.size += 1;
+        this.modCount++;
+    }
+
+    // Insert into the subtree below node. If node overflows it is
+    // split; the new right half is returned and the key separating
+    // the halves left in splitKey. Otherwise returns null.
+    private Node insert(Node node, K k, V v) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int i = this.search(leaf, k);
+            if (i >= 0) {
+                throw new IllegalArgumentException("Key already in map");
+            }
+            i = -(i + 1);
+            System.arraycopy(leaf.keys, i, leaf.keys, i + 1, leaf.n - i);
+            System.arraycopy(leaf.values, i, leaf.values, i + 1, leaf.n - i);
+            leaf.keys[i] = k;
+            leaf.values[i] = v;
+            leaf.n++;
+            return leaf.n > this.maxKeys ? this.splitLeaf(leaf) : null;
+        }
+
+        Inner inner = (Inner) node;
+        int i = this.childIndex(inner, k);
+        Node right = this.insert(inner.children[i], k, v);
+        if (right == null) {
+            return null;
+        }
+        System.arraycopy(inner.keys, i, inner.keys, i + 1, inner.n - i);
+        System.arraycopy(inner.children, i + 1, inner.children, i + 2, inner.n - i);
+        inner.keys[i] = this.splitKey;
+        inner.children[i + 1] = right;
+        inner.n++;
+        return inner.n > this.maxKeys ? this.splitInner(inner) : null;
+    }
+
+    // Move the upper half of an overfull leaf into a new leaf
+    // linked in after it.
+    private Leaf splitLeaf(Leaf leaf) {
+        int mid = leaf.n / 2;
+        Leaf right = new Leaf(this.maxKeys + 1);
+        right.n = leaf.n - mid;
+        System.arraycopy(leaf.keys, mid, right.keys, 0, right.n);
+        System.arraycopy(leaf.values, mid, right.values, 0, right.n);
+        for (int i = mid; i < leaf.n; i++) {
+            leaf.keys[i] = null;
+            leaf.values[i] = null;
+        }
+        leaf.n = mid;
+
+        right.next = leaf.next;
+        if (right.next != null) {
+            right.next.prev = right;
+        }
+        right.prev = leaf;
+        leaf.next = right;
+
+        this.splitKey = right.keys[0];
+        return right;
+    }
+
+    // Move the upper half of an overfull inner node into a new
+    // node; the middle key moves up to the parent.
+    private Inner splitInner(Inner inner) {
+        int mid = inner.n / 2;
+        Inner right = new Inner(this.maxKeys + 1);
+        right.n = inner.n - mid - 1;
+        System.arraycopy(inner.keys, mid + 1, right.keys, 0, right.n);
+        System.arraycopy(inner.children, mid + 1, right.children, 0, right.n + 1);
+        this.splitKey = inner.keys[mid];
+        for (int i = mid; i < inner.n; i++) {
+            inner.keys[i] = null;
+            inner.children[i + 1] = null;
+        }
+        inner.n = mid;
+        return right;
+    }
+
+    @Override
+    public V remove(K k) {
+        return this.take(k, true);
+    }
+
+    @Override
+    public V removeIfPresent(K k) {
+        return this.take(k, false);
+    }
+
+    // Shared by remove() and removeIfPresent(); sure says whether
+    // a missing key is an error or just gives null.
+    @SuppressWarnings("unchecked")
+    private V take(K k, boolean sure) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        Object v = this.remove(this.root, k);
+        if (v == missing) {
+            if (sure) {
+                throw new IllegalArgumentException("cannot find key " + k);
+            }
+            return null;
+        }
+        if (this.root instanceof Inner && this.root.n == 0) {
+            // The root lost its last separator, so the tree
+            // shrinks a level.
+            this.root = ((Inner) this.root).children[0];
+        }
+        this.size -= 1;
+        this.modCount++;
+        return (V) v;
+    }
+
+    // Remove k from the subtree below node and return its value,
+    // or missing if it is not there. The caller fixes node up if
+    // it ends up less than half full.
+    private Object remove(Node node, K k) {
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            int i = this.search(leaf, k);
+            if (i < 0) {
+                return missing;
+            }
+            Object v = leaf.values[i];
+            System.arraycopy(leaf.keys, i + 1, leaf.keys, i, leaf.n - i - 1);
+            System.arraycopy(leaf.values, i + 1, leaf.values, i, leaf.n - i - 1);
+            leaf.n--;
+            leaf.keys[leaf.n] = null;
+            leaf.values[leaf.n] = null;
+            return v;
+        }
+
+        Inner inner = (Inner) node;
+        int i = this.childIndex(inner, k);
+        Object v = this.remove(inner.children[i], k);
+        if (inner.children[i].n < this.minKeys) {
+            this.refill(inner, i);
+        }
+        return v;
+    }
+
+    // Bring child i of parent back to at least half full, either by
+    // taking a key from a sibling that can spare one or by merging
+    // it with a sibling.
+    private void refill(Inner parent, int i) {
+        if (i > 0 && parent.children[i - 1].n > this.minKeys) {
+            this.borrowLeft(parent, i);
+        } else if (i < parent.n && parent.children[i + 1].n > this.minKeys) {
+            this.borrowRight(parent, i);
+        } else if (i > 0) {
+            this.merge(parent, i - 1);
+        } else {
+            this.merge(parent, i);
+        }
+    }
+
+    // Move the last key of child i - 1 to the front of child i.
+    private void borrowLeft(Inner parent, int i) {
+        Node left = parent.children[i - 1];
+        Node child = parent.children[i];
+        System.arraycopy(child.keys, 0, child.keys, 1, child.n);
+
+        if (child instanceof Leaf) {
+            Leaf l = (Leaf) left;
+            Leaf c = (Leaf) child;
+            System.arraycopy(c.values, 0, c.values, 1, c.n);
+            c.keys[0] = l.keys[l.n - 1];
+            c.values[0] = l.values[l.n - 1];
+            l.keys[l.n - 1] = null;
+            l.values[l.n - 1] = null;
+            parent.keys[i - 1] = c.keys[0];
+        } else {
+            Inner l = (Inner) left;
+            Inner c = (Inner) child;
+            System.arraycopy(c.children, 0, c.children, 1, c.n + 1);
+            c.keys[0] = parent.keys[i - 1];
+            c.children[0] = l.children[l.n];
+            parent.keys[i - 1] = l.keys[l.n - 1];
+            l.keys[l.n - 1] = null;
+            l.children[l.n] = null;
+        }
+        left.n--;
+        child.n++;
+    }
+
+    // Move the first key of child i + 1 to the end of child i.
+    private void borrowRight(Inner parent, int i) {
+        Node child = parent.children[i];
+        Node right = parent.children[i + 1];
+
+        if (child instanceof Leaf) {
+            Leaf c = (Leaf) child;
+            Leaf r = (Leaf) right;
+            c.keys[c.n] = r.keys[0];
+            c.values[c.n] = r.values[0];
+            System.arraycopy(r.keys, 1, r.keys, 0, r.n - 1);
+            System.arraycopy(r.values, 1, r.values, 0, r.n - 1);
+            r.keys[r.n - 1] = null;
+            r.values[r.n - 1] = null;
+            parent.keys[i] = r.keys[0];
+        } else {
+            Inner c = (Inner) child;
+            Inner r = (Inner) right;
+            c.keys[c.n] = parent.keys[i];
+            c.children[c.n + 1] = r.children[0];
+            parent.keys[i] = r.keys[0];
+            System.arraycopy(r.keys, 1, r.keys, 0, r.n - 1);
+            System.arraycopy(r.children, 1, r.children, 0, r.n);
+            r.keys[r.n - 1] = null;
+            r.children[r.n] = null;
+        }
+        child.n++;
+        right.n--;
+    }
+
+    // Append child i + 1 to child i and drop it from the parent.
+    private void merge(Inner parent, int i) {
+        Node left = parent.children[i];
+        Node right = parent.children[i + 1];
+
+        if (left instanceof Leaf) {
+            Leaf l = (Leaf) left;
+            Leaf r = (Leaf) right;
+            System.arraycopy(r.keys, 0, l.keys, l.n, r.n);
+            System.arraycopy(r.values, 0, l.values, l.n, r.n);
+            l.n += r.n;
+            l.next = r.next;
+            if (l.next != null) {
+                l.next.prev = l;
+            }
+        } else {
+            Inner l = (Inner) left;
+            Inner r = (Inner) right;
+            l.keys[l.n] = parent.keys[i];
+            System.arraycopy(r.keys, 0, l.keys, l.n + 1, r.n);
+            System.arraycopy(r.children, 0, l.children, l.n + 1, r.n + 1);
+            l.n += 1 + r.n;
+        }
+
+        System.arraycopy(parent.keys, i + 1, parent.keys, i, parent.n - i - 1);
+        System.arraycopy(parent.children, i + 2, parent.children, i + 1, parent.n - i - 1);
+        parent.n--;
+        parent.keys[parent.n] = null;
+        parent.children[parent.n + 1] = null;
+    }
+
+    @Override
+    public V putIfAbsent(K k, V v) {
+        return this.update(k, key -> v, (key, old) -> old != null ? old : v, true);
+    }
+
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return this.update(k, f, (key, old) -> old != null ? old : f.apply(key), false);
+    }
+
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.update(k, key -> f.apply(key, null), f, false);
+    }
+
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        return this.update(k, key -> v, (key, old) -> f.apply(old, v), false);
+    }
+
+    // Shared by the compound operations. A missing key is inserted
+    // with absent's result, an existing one gets present's result;
+    // a null result means no mapping. Replacing a value takes one
+    // descent, adding or dropping a key a second one.
+    @SuppressWarnings("unchecked")
+    private V update(K k, Function<? super K, ? extends V> absent,
+                     BiFunction<? super K, ? super V, ? extends V> present,
+                     boolean before) {
+        Leaf leaf = this.leafWith(k);
+        int i = this.search(leaf, k);
+        int expected = this.modCount;
+
+        if (i < 0) {
+            V v = absent.apply(k);
+            this.checkUnchanged(expected);
+            if (v != null) {
+                this.insert(k, v);
+            }
+            return before ? null : v;
+        }
+
+        V old = (V) leaf.values[i];
+        V v = present.apply(k, old);
+        this.checkUnchanged(expected);
+        if (v == null) {
+            this.remove(k);
+        } else {
+            leaf.values[i] = v;
+        }
+        return before ? old : v;
+    }
+
+    // Compound operations must not have their functions add or
+    // remove keys, since the leaf and slot found before would no
+    // longer be valid.
+    private void checkUnchanged(int expected) {
+        if (this.modCount != expected) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    // Position next to k in a leaf: the first key at or above k
+    // (above if not inclusive), or the last key at or below it
+    // when going down. May be -1 or leaf.n, meaning the key is in
+    // the neighbouring leaf.
+    private int offset(Leaf leaf, K k, boolean below, boolean inclusive) {
+        int i = this.search(leaf, k);
+        if (below) {
+            return i >= 0 ? (inclusive ? i : i - 1) : -(i + 1) - 1;
+        }
+        return i >= 0 ? (inclusive ? i : i + 1) : -(i + 1);
+    }
+
+    @Override
+    public K first() {
+        Leaf leaf = this.endLeaf(false);
+        return leaf.n == 0 ? null : key(leaf, 0);
+    }
+
+    @Override
+    public K last() {
+        Leaf leaf = this.endLeaf(true);
+        return leaf.n == 0 ? null : key(leaf, leaf.n - 1);
+    }
+
+    @Override
+    public K floor(K k) {
+        return this.nearest(k, true, true);
+    }
+
+    @Override
+    public K ceiling(K k) {
+        return this.nearest(k, false, true);
+    }
+
+    @Override
+    public K lower(K k) {
+        return this.nearest(k, true, false);
+    }
+
+    @Override
+    public K higher(K k) {
+        return this.nearest(k, false, false);
+    }
+
+    // Closest key on one side of k. Leaves other than the root are
+    // never empty, so it is at most one leaf over.
+    private K nearest(K k, boolean below, boolean inclusive) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        Leaf leaf = this.leafFor(k);
+        int i = this.offset(leaf, k, below, inclusive);
+        if (i < 0) {
+            leaf = leaf.prev;
+            i = leaf == null ? 0 : leaf.n - 1;
+        } else if (i >= leaf.n) {
+            leaf = leaf.next;
+            i = 0;
+        }
+        return leaf == null ? null : key(leaf, i);
+    }
+
+    @Override
+    public Iterable<K> subMap(K from, K to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("from is greater than to");
+        }
+        return () -> new KeyIterator(from, to, false);
+    }
+
+    @Override
+    public Iterable<K> headMap(K to) {
+        if (to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return () -> new KeyIterator(null, to, false);
+    }
+
+    @Override
+    public Iterable<K> tailMap(K from) {
+        if (from == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return () -> new KeyIterator(from, null, false);
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new KeyIterator(null, null, false);
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+        return new KeyIterator(null, null, true);
+    }
+
+    // Iterator over the keys from lo (inclusive) to hi (exclusive)
+    // that walks along the linked leaves.
+    private class KeyIterator implements Iterator<K> {
+        private final K lo;
+        private final K hi;
+        private final boolean descending;
+        private Leaf leaf;
+        private int index;
+        private int expected;
+        private K last;
+
+        KeyIterator(K lo, K hi, boolean descending) {
+            this.lo = lo;
+            this.hi = hi;
+            this.descending = descending;
+            this.expected = modCount;
+            if (descending) {
+                this.seek(hi, false);
+            } else {
+                this.seek(lo, true);
+            }
+        }
+
+        // Move to the first key at or past from, in iteration order.
+        private void seek(K from, boolean inclusive) {
+            if (from == null) {
+                this.leaf = endLeaf(this.descending);
+                this.index = this.descending ? this.leaf.n - 1 : 0;
+            } else {
+                this.leaf = leafFor(from);
+                this.index = offset(this.leaf, from, this.descending, inclusive);
+            }
+            this.settle();
+        }
+
+        // Step over to the neighbouring leaf if index ran off
+        // the end of this one.
+        private void settle() {
+            if (this.descending && this.index < 0) {
+                this.leaf = this.leaf.prev;
+                this.index = this.leaf == null ? 0 : this.leaf.n - 1;
+            } else if (!this.descending && this.index >= this.leaf.n) {
+                this.leaf = this.leaf.next;
+                this.index = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.leaf == null || this.leaf.n == 0) {
+                return false;
+            }
+            K k = key(this.leaf, this.index);
+            return this.descending
+                ? this.lo == null || k.compareTo(this.lo) >= 0
+                : this.hi == null || k.compareTo(this.hi) < 0;
+        }
+
+        @Override
+        public K next() {
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            this.last = key(this.leaf, this.index);
+            this.index += this.descending ? -1 : 1;
+            this.settle();
+            return this.last;
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            // Removal may merge or rearrange leaves, so find the
+            // way back from the root.
+            BTreeMap.this.remove(this.last);
+            this.expected = modCount;
+            this.seek(this.last, false);
+            this.last = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        for (Leaf leaf = this.endLeaf(false); leaf != null; leaf = leaf.next) {
+            for (int i = 0; i < leaf.n; i++) {
+                s.append(leaf.keys[i]);
+                s.append(" : ");
+                s.append(leaf.values[i]);
+                s.append(", ");
+            }
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+}
@@ -1,16 +1,22 @@
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * Ordered map from comparable keys to arbitrary values, implemented
  * with a basic binary search tree.
  *
  * These BSTs are not balanced so worst-case all operations except
- * size() are O(n). Each iterator operates on a copy of the keys, so
- * changing the tree will not change iterations in progress.
+ * size() are O(n). Iterators walk the tree lazily and throw a
+ * ConcurrentModificationException if the tree is changed other than
+ * through their own remove().
  *
  * @param <K> Type for keys.
  * @param <V> Type for values.
@@ -19,8 +25,8 @@ public class BinarySearchTreeMap<K extends Comparable<? super K>, V>
     implements OrderedMap<K, V> {
 
     // Inner node class, each holds a key (which is what we sort the
-    // BST by) as well as a value. We don't need a parent pointer as
-    // long as we use recursive insert/remove helpers.
+    // BST by) as well as a value. We don't need a parent pointer
+    // since insert/remove walk down remembering the parent.
     private class Node {
         Node left;
         Node right;
@@ -44,7 +50,13 @@ public class BinarySearchTreeMap<K extends Comparable<? super K>, V>
 
     private Node root;
     private int size;
-    private StringBuilder stringBuilder;
+
+    // writeTo() hands its text on in pieces of about this size.
+    private static final int writeChunk = 1 << 13;
+
+    // Bumped whenever a key is added or removed, so that
+    // iterators can fail fast.
+    private int modCount;
 
     @Override
     public int size() {
@@ -104,39 +116,55 @@ public class BinarySearchTreeMap<K extends Comparable<? super K>, V>
         return n.value;
     }
 
-    // Insert given key and value into subtree rooted
-    // at given node; return changed subtree with new
-    // node added. (Doing this recursively makes it
-    // easier to add fancy rebalancing code later.)
-    private Node insert(Node n, K k, V v) {
-        if (n == null) {
-            return new Node(k, v);
+    @Override
+    public void insert(K k, V v) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
         }
 
-        int cmp = k.compareTo(n.key);
-        if (cmp < 0) {
-            n.left = this.insert(n.left, k, v);
-        } else if (cmp > 0) {
-            n.right = this.insert(n.right, k, v);
-        } else {
-            throw new IllegalArgumentException("duplicate key " + k);
+        // Walk down remembering the parent, so that degenerate
+        // (say sorted) input cannot overflow the call stack.
+        Node parent = null;
+        Node n = this.root;
+        int cmp = 0;
+        while (n != null) {
+            cmp = k.compareTo(n.key);
+            if (cmp == 0) {
+                throw new IllegalArgumentException("duplicate key " + k);
+            }
+            parent = n;
+            n = cmp < 0 ? n.left : n.right;
         }
+        this.attach(parent, cmp, new Node(k, v));
+        this.size += 1;
+        this.modCount++;
+    }
 
-        return n;
+    // Hang a new leaf on the given side of parent.
+    private void attach(Node parent, int cmp, Node leaf) {
+        if (parent == null) {
+            this.root = leaf;
+        } else if (cmp < 0) {
+            parent.left = leaf;
+        } else {
+            parent.right = leaf;
+        }
     }
 
-    @Override
-    public void insert(K k, V v) {
-        if (k == null) {
-            throw new IllegalArgumentException("cannot handle null key");
+    // Replace the child old of parent (the root if parent
+    // is null) by n.
+    private void relink(Node parent, Node old, Node n) {
+        if (parent == null) {
+            this.root = n;
+        } else if (parent.left == old) {
+            parent.left = n;
+        } else {
+            parent.right = n;
         }
-        this.root = this.insert(this.root, k, v);
-        this.size += 1;
     }
 
     // Return node with maximum key in subtree rooted
-    // at given node. (Iterative version because once
-    // again recursion has no advantage here.)
+    // at given node.
     private Node max(Node n) {
         while (n.right != null) {
             n = n.right;
@@ -144,102 +172,416 @@ public class BinarySearchTreeMap<K extends Comparable<? super K>, V>
         return n;
     }
 
-    // Remove node with given key from subtree rooted at
-    // given node; return changed subtree with given key
-    // missing. (Once again doing this recursively makes
-    // it easier to add fancy rebalancing code later.)
-    private Node remove(Node n, K k) {
-        if (n == null) {
-            throw new IllegalArgumentException("cannot find key " + k);
+    // Remove given node, a child of parent. Easy if the node
+    // has 0 or 1 child; if it has two children, find the
+    // predecessor, copy its data to the given node (thus
+    // removing the key we need to get rid off), then splice
+    // out the predecessor, which has no right child.
+    private void unlink(Node parent, Node n) {
+        // 0 and 1 child
+        if (n.left == null || n.right == null) {
+            this.relink(parent, n, n.left != null ? n.left : n.right);
+            return;
         }
 
-        int cmp = k.compareTo(n.key);
-        if (cmp < 0) {
-            n.left = this.remove(n.left, k);
-        } else if (cmp > 0) {
-            n.right = this.remove(n.right, k);
-        } else {
-            n = this.remove(n);
+        // 2 children
+        Node maxParent = n;
+        Node max = n.left;
+        while (max.right != null) {
+            maxParent = max;
+            max = max.right;
         }
+        n.key = max.key;
+        n.value = max.value;
+        this.relink(maxParent, max, max.left);
+    }
 
-        return n;
+    @Override
+    public V getOrDefault(K k, V d) {
+        Node n = this.find(k);
+        return n == null ? d : n.value;
     }
 
-    // Remove given node and return the remaining tree.
-    // Easy if the node has 0 or 1 child; if it has two
-    // children, find the predecessor, copy its data to
-    // the given node (thus removing the key we need to
-    // get rid off), then remove the predecessor node.
-    private Node remove(Node n) {
-        // 0 and 1 child
-        if (n.left == null) {
-            return n.right;
+    @Override
+    public V putIfAbsent(K k, V v) {
+        return this.update(k, key -> v, (key, old) -> old != null ? old : v, true);
+    }
+
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return this.update(k, f, (key, old) -> old != null ? old : f.apply(key), false);
+    }
+
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.update(k, key -> f.apply(key, null), f, false);
+    }
+
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        return this.update(k, key -> v, (key, old) -> f.apply(old, v), false);
+    }
+
+    // Single descent shared by the compound operations. A missing
+    // key gets a node holding absent's result, an existing one has
+    // its value replaced by present's result; a null result means
+    // no node. Returns the value before if before is set, else the
+    // value after.
+    private V update(K k, Function<? super K, ? extends V> absent,
+                     BiFunction<? super K, ? super V, ? extends V> present,
+                     boolean before) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
         }
-        if (n.right == null) {
-            return n.left;
+
+        Node parent = null;
+        Node n = this.root;
+        int cmp = 0;
+        while (n != null) {
+            cmp = k.compareTo(n.key);
+            if (cmp == 0) {
+                break;
+            }
+            parent = n;
+            n = cmp < 0 ? n.left : n.right;
         }
 
-        // 2 children
-        Node max = this.max(n.left);
-        n.key = max.key;
-        n.value = max.value;
-        n.left = this.remove(n.left, max.key);
-        return n;
+        int expected = this.modCount;
+        if (n == null) {
+            V v = absent.apply(k);
+            this.checkUnchanged(expected);
+            if (v != null) {
+                this.attach(parent, cmp, new Node(k, v));
+                this.size += 1;
+                this.modCount++;
+            }
+            return before ? null : v;
+        }
+
+        V old = n.value;
+        V v = present.apply(k, old);
+        this.checkUnchanged(expected);
+        if (v == null) {
+            this.unlink(parent, n);
+            this.size -= 1;
+            this.modCount++;
+        } else {
+            n.value = v;
+        }
+        return before ? old : v;
+    }
+
+    // Compound operations must not have their functions add or
+    // remove keys, since the parent found before would no longer
+    // be valid.
+    private void checkUnchanged(int expected) {
+        if (this.modCount != expected) {
+            throw new ConcurrentModificationException();
+        }
     }
 
     @Override
     public V remove(K k) {
-        // Need this additional find() for the V return value, because the
-        // private remove() method cannot return that in addition to the new
-        // root. If we had been smarter and used a void return type, we would
-        // not need to do this extra work.
-        V v = this.findForSure(k).value;
-        this.root = this.remove(this.root, k);
+        return this.take(k, true);
+    }
+
+    @Override
+    public V removeIfPresent(K k) {
+        return this.take(k, false);
+    }
+
+    // Shared by remove() and removeIfPresent(); sure says whether
+    // a missing key is an error or just gives null.
+    private V take(K k, boolean sure) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        // One walk down finds both the value to return and the
+        // parent to splice the node out of.
+        Node parent = null;
+        Node n = this.root;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp == 0) {
+                break;
+            }
+            parent = n;
+            n = cmp < 0 ? n.left : n.right;
+        }
+        if (n == null) {
+            if (sure) {
+                throw new IllegalArgumentException("cannot find key " + k);
+            }
+            return null;
+        }
+
+        V v = n.value;
+        this.unlink(parent, n);
         this.size -= 1;
+        this.modCount++;
         return v;
     }
 
-    // Recursively add keys from subtree rooted at given node
-    // into the given list.
-    private void iteratorHelper(Node n, List<K> keys) {
-        if (n == null) {
-            return;
+    @Override
+    public K first() {
+        if (this.root == null) {
+            return null;
+        }
+        Node n = this.root;
+        while (n.left != null) {
+            n = n.left;
         }
-        this.iteratorHelper(n.left, keys);
-        keys.add(n.key);
-        this.iteratorHelper(n.right, keys);
+        return n.key;
     }
 
-    // Return the iterator of arraylist
+    @Override
+    public K last() {
+        if (this.root == null) {
+            return null;
+        }
+        return this.max(this.root).key;
+    }
+
+    @Override
+    public K floor(K k) {
+        return this.nearest(k, true, true);
+    }
+
+    @Override
+    public K ceiling(K k) {
+        return this.nearest(k, false, true);
+    }
+
+    @Override
+    public K lower(K k) {
+        return this.nearest(k, true, false);
+    }
+
+    @Override
+    public K higher(K k) {
+        return this.nearest(k, false, false);
+    }
+
+    // Walk down towards k, remembering the last key passed on
+    // the wanted side of it (below or above k; k itself only if
+    // inclusive). Returns null if there is no such key.
+    private K nearest(K k, boolean below, boolean inclusive) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        Node n = this.root;
+        K best = null;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp == 0 && inclusive) {
+                return n.key;
+            }
+            if (below ? cmp > 0 : cmp >= 0) {
+                if (below) {
+                    best = n.key;
+                }
+                n = n.right;
+            } else {
+                if (!below) {
+                    best = n.key;
+                }
+                n = n.left;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public Iterable<K> subMap(K from, K to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("from is greater than to");
+        }
+        return this.range(from, to);
+    }
+
+    @Override
+    public Iterable<K> headMap(K to) {
+        if (to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.range(null, to);
+    }
+
+    @Override
+    public Iterable<K> tailMap(K from) {
+        if (from == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.range(from, null);
+    }
+
+    // Keys from lo (inclusive) to hi (exclusive), produced lazily,
+    // so stopping after k keys costs O(log n + k). A null bound
+    // means no bound.
+    private Iterable<K> range(K lo, K hi) {
+        return () -> new KeyIterator(lo, hi, false);
+    }
+
+    // Keys in ascending order. The iterator keeps only the path
+    // to the next node, so it costs O(height) memory, and fails
+    // fast if the map is changed other than through it.
     @Override
     public Iterator<K> iterator() {
-        List<K> keys = new ArrayList<K>();
-        this.iteratorHelper(this.root, keys);
-        return keys.iterator();
+        return new KeyIterator(null, null, false);
     }
 
-    // If we don't have a StringBuilder yet, make one;
-    // otherwise just reset it back to a clean slate.
-    private void setupStringBuilder() {
-        if (this.stringBuilder == null) {
-            this.stringBuilder = new StringBuilder();
-        } else {
-            this.stringBuilder.setLength(0);
+    // Keys in descending order.
+    @Override
+    public Iterator<K> descendingIterator() {
+        return new KeyIterator(null, null, true);
+    }
+
+    /**
+     * Lazy in-order iterator over the keys from lo (inclusive)
+     * to hi (exclusive), using an explicit stack of the nodes
+     * still to be visited on the path from the root.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private final ArrayDeque<Node> stack;
+        private final K lo;
+        private final K hi;
+        private final boolean descending;
+        private int expected;
+        private K last;
+
+        /**
+         * Start an iteration.
+         * @param lo lower bound, or null for none.
+         * @param hi upper bound, or null for none.
+         * @param descending true to go from largest to smallest.
+         */
+        KeyIterator(K lo, K hi, boolean descending) {
+            this.stack = new ArrayDeque<Node>();
+            this.lo = lo;
+            this.hi = hi;
+            this.descending = descending;
+            this.expected = modCount;
+            if (descending) {
+                this.seek(hi, false);
+            } else {
+                this.seek(lo, true);
+            }
+        }
+
+        /**
+         * Stack the path to the first key at or past from, in
+         * iteration order.
+         * @param from key to start at, or null for the very first.
+         * @param inclusive true if from itself may come next.
+         */
+        private void seek(K from, boolean inclusive) {
+            Node n = root;
+            while (n != null) {
+                int cmp = from == null ? 0 : n.key.compareTo(from);
+                if (this.descending) {
+                    cmp = -cmp;
+                }
+                if (from == null || cmp > 0 || (cmp == 0 && inclusive)) {
+                    this.stack.push(n);
+                    n = this.descending ? n.right : n.left;
+                } else {
+                    n = this.descending ? n.left : n.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.stack.isEmpty()) {
+                return false;
+            }
+            K k = this.stack.peek().key;
+            return this.descending
+                ? this.lo == null || k.compareTo(this.lo) >= 0
+                : this.hi == null || k.compareTo(this.hi) < 0;
+        }
+
+        @Override
+        public K next() {
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Node n = this.stack.pop();
+            Node m = this.descending ? n.left : n.right;
+            while (m != null) {
+                this.stack.push(m);
+                m = this.descending ? m.right : m.left;
+            }
+            this.last = n.key;
+            return n.key;
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            // Removal may unlink a node on our stack or replace its
+            // key with the predecessor's, so find the way back from
+            // the root.
+            BinarySearchTreeMap.this.remove(this.last);
+            this.expected = modCount;
+            this.stack.clear();
+            this.seek(this.last, false);
+            this.last = null;
         }
     }
 
-    // Recursively append string representations of keys and
-    // values from subtree rooted at given node.
-    private void toStringHelper(Node n, StringBuilder s) {
-        if (n == null) {
-            return;
+    /**
+     * Write the map out as toString() would, walking the nodes in
+     * order and handing the text to out in pieces of about
+     * writeChunk chars, so a huge map never has to fit in one
+     * string.
+     * @param out where the text goes.
+     * @throws IOException if out does.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        StringBuilder s = new StringBuilder(writeChunk);
+        s.append("{");
+
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        Node n = this.root;
+        boolean first = true;
+        while (n != null || !stack.isEmpty()) {
+            while (n != null) {
+                stack.push(n);
+                n = n.left;
+            }
+            n = stack.pop();
+            if (!first) {
+                s.append(", ");
+            }
+            first = false;
+            s.append(n.key);
+            s.append(": ");
+            s.append(n.value);
+            if (s.length() >= writeChunk) {
+                out.append(s);
+                s.setLength(0);
+            }
+            n = n.right;
         }
-        this.toStringHelper(n.left, s);
-        s.append(n.key);
-        s.append(": ");
-        s.append(n.value);
-        s.append(", ");
-        this.toStringHelper(n.right, s);
+
+        s.append("}");
+        out.append(s);
     }
 
     /**
@@ -248,19 +590,13 @@ public class BinarySearchTreeMap<K extends Comparable<? super K>, V>
      */
     @Override
     public String toString() {
-        this.setupStringBuilder();
-        this.stringBuilder.append("{");
-
-        this.toStringHelper(this.root, this.stringBuilder);
-
-        int length = this.stringBuilder.length();
-        if (length > 1) {
-            // If anything was appended at all, get rid of
-            // the last ", " the toStringHelper put in.
-            this.stringBuilder.setLength(length - 2);
+        StringBuilder s = new StringBuilder();
+        try {
+            this.writeTo(s);
+        } catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new UncheckedIOException(e);
         }
-        this.stringBuilder.append("}");
-
-        return this.stringBuilder.toString();
+        return s.toString();
     }
 }
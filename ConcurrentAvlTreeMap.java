@@ -0,0 +1,706 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe ordered map using the same AVL balancing as
+ * AvlTreeMap, tuned for workloads that mostly read.
+ *
+ * Writers take the write lock of a StampedLock. Readers (get, has,
+ * floor, first, ...) take no lock: they walk the tree under an
+ * optimistic stamp and only fall back to the read lock if a writer
+ * got in while they were reading. Child links and values are
+ * volatile and keys never change, so a reader always walks an
+ * acyclic tree made of fully built nodes, even if it sees a
+ * rebalance half done; the stamp check then throws that result
+ * away. A read that fails with an exception is retried the same
+ * way, and the exception only escapes if no writer interfered.
+ *
+ * The compound operations (putIfAbsent, compute, ...) run
+ * atomically under the write lock. Their functions must not use the
+ * map: the lock is not reentrant, so such a call throws
+ * IllegalStateException rather than blocking its thread for good.
+ *
+ * Iterators are weakly consistent: each step looks up the next key
+ * after the last one returned, so they never throw
+ * ConcurrentModificationException, cost O(log n) per key, and may
+ * or may not reflect updates made after they were created.
+ * @param <K> Key values.
+ * @param <V> Values held.
+ */
+public class ConcurrentAvlTreeMap<K extends Comparable<? super K>, V>
+        implements OrderedMap<K, V> {
+
+    /**
+     * Tree node; only the writer changes links and heights.
+     */
+    private class Node {
+        final K key;
+        volatile V value;
+        volatile Node left;
+        volatile Node right;
+        int height;
+
+        Node(K k, V v) {
+            this.key = k;
+            this.value = v;
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+
+    // Thread running a mapping function under the write lock.
+    private volatile Thread writer;
+    private volatile Node root;
+    private volatile int size;
+
+    /**
+     * Default constructor.
+     */
+    public ConcurrentAvlTreeMap() {
+        this.root = null;
+        this.size = 0;
+    }
+
+    /**
+     * Run a read-only operation without locking, retrying it
+     * under the read lock if a writer may have interfered.
+     * @param op operation to run.
+     * @param <R> result type.
+     * @return result of op.
+     */
+    private <R> R read(Supplier<R> op) {
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                R r = op.get();
+                if (this.lock.validate(stamp)) {
+                    return r;
+                }
+            } catch (RuntimeException e) {
+                if (this.lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+
+        this.checkNotWriter();
+        stamp = this.lock.readLock();
+        try {
+            return op.get();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Find the node with that key.
+     * @param k key to look for.
+     * @return Node with that key, or null.
+     */
+    private Node find(K k) {
+        Node n = this.root;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp < 0) {
+                n = n.left;
+            } else if (cmp > 0) {
+                n = n.right;
+            } else {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the node with that key without locking.
+     * @param k key to look for.
+     * @return Node with that key, or null.
+     */
+    private Node lookup(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.read(() -> this.find(k));
+    }
+
+    @Override
+    public V get(K k) throws IllegalArgumentException {
+        Node n = this.lookup(k);
+        if (n == null) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        return n.value;
+    }
+
+    @Override
+    public boolean has(K k) {
+        return k != null && this.lookup(k) != null;
+    }
+
+    @Override
+    public V getOrDefault(K k, V d) {
+        Node n = this.lookup(k);
+        return n == null ? d : n.value;
+    }
+
+    /**
+     * Number of key/value pairs, read without locking.
+     * @return Number of key/value pairs in the map.
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public void insert(K k, V v) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        this.checkNotWriter();
+        long stamp = this.lock.writeLock();
+        try {
+            ArrayList<Node> path = new ArrayList<Node>();
+            if (this.descend(k, path) != null) {
+                throw new IllegalArgumentException("Key already in map");
+            }
+            this.attach(path, new Node(k, v));
+            this.size++;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V remove(K k) throws IllegalArgumentException {
+        return this.take(k, true);
+    }
+
+    @Override
+    public V removeIfPresent(K k) throws IllegalArgumentException {
+        return this.take(k, false);
+    }
+
+    /**
+     * Single descent shared by remove() and removeIfPresent().
+     * @param k The key.
+     * @param sure true if a missing key is an error.
+     * @return value removed, or null if there was none.
+     */
+    private V take(K k, boolean sure) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        this.checkNotWriter();
+        long stamp = this.lock.writeLock();
+        try {
+            ArrayList<Node> path = new ArrayList<Node>();
+            Node n = this.descend(k, path);
+            if (n == null) {
+                if (sure) {
+                    throw new IllegalArgumentException("cannot find key " + k);
+                }
+                return null;
+            }
+            this.unlink(path, n);
+            this.size--;
+            return n.value;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void put(K k, V v) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        this.checkNotWriter();
+        long stamp = this.lock.writeLock();
+        try {
+            Node n = this.find(k);
+            if (n == null) {
+                throw new IllegalArgumentException("cannot find key " + k);
+            }
+            n.value = v;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K k, V v) {
+        return this.update(k, key -> v, (key, old) -> old != null ? old : v, true);
+    }
+
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return this.update(k, f, (key, old) -> old != null ? old : f.apply(key), false);
+    }
+
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.update(k, key -> f.apply(key, null), f, false);
+    }
+
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        return this.update(k, key -> v, (key, old) -> f.apply(old, v), false);
+    }
+
+    /**
+     * Atomic update shared by the compound operations. A missing
+     * key is inserted with absent's result, an existing one gets
+     * present's result; a null result means no mapping.
+     * @param k The key.
+     * @param absent Value for a missing key.
+     * @param present New value for an existing key.
+     * @param before true to return the value before, else after.
+     * @return Value before or after the update, or null.
+     */
+    private V update(K k, Function<? super K, ? extends V> absent,
+                     BiFunction<? super K, ? super V, ? extends V> present,
+                     boolean before) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        this.checkNotWriter();
+        long stamp = this.lock.writeLock();
+        try {
+            ArrayList<Node> path = new ArrayList<Node>();
+            Node n = this.descend(k, path);
+            this.writer = Thread.currentThread();
+
+            if (n == null) {
+                V v = absent.apply(k);
+                if (v != null) {
+                    this.attach(path, new Node(k, v));
+                    this.size++;
+                }
+                return before ? null : v;
+            }
+
+            V old = n.value;
+            V v = present.apply(k, old);
+            if (v == null) {
+                this.unlink(path, n);
+                this.size--;
+            } else {
+                n.value = v;
+            }
+            return before ? old : v;
+        } finally {
+            this.writer = null;
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Fail fast if this thread holds the write lock for a mapping
+     * function, since taking the lock again would never return.
+     */
+    private void checkNotWriter() {
+        if (this.writer == Thread.currentThread()) {
+            throw new IllegalStateException("mapping function must not use the map");
+        }
+    }
+
+    /**
+     * Walk down to the node with the given key (writer only).
+     * @param k key to look for.
+     * @param path gets the nodes above the one found, or above
+     *     where k would go.
+     * @return node with key k, or null if not mapped.
+     */
+    private Node descend(K k, ArrayList<Node> path) {
+        Node n = this.root;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp == 0) {
+                return n;
+            }
+            path.add(n);
+            n = cmp < 0 ? n.left : n.right;
+        }
+        return null;
+    }
+
+    /**
+     * Hang a new leaf below the end of a path and rebalance.
+     * @param path nodes from the root to the leaf's parent.
+     * @param leaf node to add.
+     */
+    private void attach(ArrayList<Node> path, Node leaf) {
+        if (path.isEmpty()) {
+            this.root = leaf;
+        } else {
+            Node parent = path.get(path.size() - 1);
+            if (leaf.key.compareTo(parent.key) < 0) {
+                parent.left = leaf;
+            } else {
+                parent.right = leaf;
+            }
+        }
+        this.retrace(path);
+    }
+
+    /**
+     * Remove a node and rebalance. A node with two children is
+     * replaced by its predecessor, whose path gets added on. The
+     * predecessor is moved rather than copied, since readers may
+     * hold on to either node.
+     * @param path nodes from the root to the parent of n.
+     * @param n node to be removed.
+     */
+    private void unlink(ArrayList<Node> path, Node n) {
+        Node parent = path.isEmpty() ? null : path.get(path.size() - 1);
+
+        if (n.left == null || n.right == null) {
+            this.relink(parent, n, n.left != null ? n.left : n.right);
+            this.retrace(path);
+            return;
+        }
+
+        int at = path.size();
+        path.add(n);
+        Node m = n.left;
+        while (m.right != null) {
+            path.add(m);
+            m = m.right;
+        }
+        this.relink(path.get(path.size() - 1), m, m.left);
+
+        m.left = n.left;
+        m.right = n.right;
+        m.height = n.height;
+        path.set(at, m);
+        this.relink(parent, n, m);
+        this.retrace(path);
+    }
+
+    /**
+     * Walk back up a path below which a node was added or removed,
+     * fixing heights and balance until a subtree ends up as high
+     * as it was before.
+     * @param path nodes from the root down.
+     */
+    private void retrace(ArrayList<Node> path) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node n = path.get(i);
+            int before = n.height;
+            Node m = this.balanceFix(n);
+            this.relink(i == 0 ? null : path.get(i - 1), n, m);
+            if (m.height == before) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replace a child of a node.
+     * @param parent node to change, or null for the root.
+     * @param old current child.
+     * @param n new child.
+     */
+    private void relink(Node parent, Node old, Node n) {
+        if (parent == null) {
+            this.root = n;
+        } else if (parent.left == old) {
+            parent.left = n;
+        } else {
+            parent.right = n;
+        }
+    }
+
+    /**
+     * Fix balance of tree.
+     * @param n node to check balance of.
+     * @return new node position.
+     */
+    private Node balanceFix(Node n) {
+        int b = height(n.left) - height(n.right);
+        if (b > 1) {
+            if (height(n.left.left) < height(n.left.right)) {
+                n.left = this.rotateLeft(n.left);
+            }
+            n = this.rotateRight(n);
+        } else if (b < -1) {
+            if (height(n.right.right) < height(n.right.left)) {
+                n.right = this.rotateRight(n.right);
+            }
+            n = this.rotateLeft(n);
+        }
+        this.fixHeight(n);
+        return n;
+    }
+
+    /**
+     * Find height of node.
+     * @param n node to find height of.
+     * @return height.
+     */
+    private int height(Node n) {
+        return n == null ? -1 : n.height;
+    }
+
+    /**
+     * Recompute height of node from its children.
+     * @param n node to fix.
+     */
+    private void fixHeight(Node n) {
+        n.height = 1 + Math.max(height(n.left), height(n.right));
+    }
+
+    /**
+     * Rotate tree right. The moved subtree is unhooked from n
+     * before n is hung below temp, so a reader never meets a
+     * cycle.
+     * @param n node to rotate from.
+     * @return new node in that position.
+     */
+    private Node rotateRight(Node n) {
+        Node temp = n.left;
+        n.left = temp.right;
+        temp.right = n;
+        this.fixHeight(n);
+        this.fixHeight(temp);
+        return temp;
+    }
+
+    /**
+     * Rotate tree left.
+     * @param n node to rotate from.
+     * @return the new node in that position.
+     */
+    private Node rotateLeft(Node n) {
+        Node temp = n.right;
+        n.right = temp.left;
+        temp.left = n;
+        this.fixHeight(n);
+        this.fixHeight(temp);
+        return temp;
+    }
+
+    @Override
+    public K first() {
+        return this.read(() -> this.end(false));
+    }
+
+    @Override
+    public K last() {
+        return this.read(() -> this.end(true));
+    }
+
+    /**
+     * Smallest or largest key.
+     * @param largest true for the largest.
+     * @return the key, or null if empty.
+     */
+    private K end(boolean largest) {
+        Node n = this.root;
+        if (n == null) {
+            return null;
+        }
+        Node next = largest ? n.right : n.left;
+        while (next != null) {
+            n = next;
+            next = largest ? n.right : n.left;
+        }
+        return n.key;
+    }
+
+    @Override
+    public K floor(K k) {
+        return this.nearest(k, true, true);
+    }
+
+    @Override
+    public K ceiling(K k) {
+        return this.nearest(k, false, true);
+    }
+
+    @Override
+    public K lower(K k) {
+        return this.nearest(k, true, false);
+    }
+
+    @Override
+    public K higher(K k) {
+        return this.nearest(k, false, false);
+    }
+
+    /**
+     * Closest key on one side of k, found without locking.
+     * @param k key to compare against.
+     * @param below true to look for smaller keys, else larger ones.
+     * @param inclusive true if k itself qualifies.
+     * @return closest key, or null if there is none.
+     */
+    private K nearest(K k, boolean below, boolean inclusive) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        return this.read(() -> {
+            Node n = this.root;
+            K best = null;
+            while (n != null) {
+                int cmp = k.compareTo(n.key);
+                if (cmp == 0 && inclusive) {
+                    return n.key;
+                }
+                if (below ? cmp > 0 : cmp >= 0) {
+                    if (below) {
+                        best = n.key;
+                    }
+                    n = n.right;
+                } else {
+                    if (!below) {
+                        best = n.key;
+                    }
+                    n = n.left;
+                }
+            }
+            return best;
+        });
+    }
+
+    @Override
+    public Iterable<K> subMap(K from, K to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("from is greater than to");
+        }
+        return () -> new KeyIterator(from, to, false);
+    }
+
+    @Override
+    public Iterable<K> headMap(K to) {
+        if (to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return () -> new KeyIterator(null, to, false);
+    }
+
+    @Override
+    public Iterable<K> tailMap(K from) {
+        if (from == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return () -> new KeyIterator(from, null, false);
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new KeyIterator(null, null, false);
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+        return new KeyIterator(null, null, true);
+    }
+
+    /**
+     * Weakly consistent iterator over the keys from lo (inclusive)
+     * to hi (exclusive), finding each key as the neighbour of the
+     * one before.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private final K lo;
+        private final K hi;
+        private final boolean descending;
+        private K next;
+        private K last;
+
+        KeyIterator(K lo, K hi, boolean descending) {
+            this.lo = lo;
+            this.hi = hi;
+            this.descending = descending;
+            if (descending) {
+                this.advance(hi == null ? last() : lower(hi));
+            } else {
+                this.advance(lo == null ? first() : ceiling(lo));
+            }
+        }
+
+        private void advance(K k) {
+            if (k != null && (this.descending
+                    ? this.lo != null && k.compareTo(this.lo) < 0
+                    : this.hi != null && k.compareTo(this.hi) >= 0)) {
+                k = null;
+            }
+            this.next = k;
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public K next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            this.advance(this.descending ? lower(this.last) : higher(this.last));
+            return this.last;
+        }
+
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            // A key some other thread removed already is simply gone.
+            ConcurrentAvlTreeMap.this.removeIfPresent(this.last);
+            this.last = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        this.checkNotWriter();
+        long stamp = this.lock.readLock();
+        try {
+            ArrayDeque<Node> stack = new ArrayDeque<Node>();
+            Node n = this.root;
+            while (n != null || !stack.isEmpty()) {
+                while (n != null) {
+                    stack.push(n);
+                    n = n.left;
+                }
+                n = stack.pop();
+                s.append(n.key);
+                s.append(" : ");
+                s.append(n.value);
+                s.append(", ");
+                n = n.right;
+            }
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+
+}
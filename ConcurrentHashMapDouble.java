@@ -0,0 +1,511 @@
+
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Thread-safe hashmap using the same quadratic probing as
+ * HashMapDouble, split into independently locked segments.
+ *
+ * Writers lock only the segment their key hashes to, so writers
+ * on different segments never wait for each other, and each
+ * segment resizes on its own. Readers take no lock at all: slots
+ * hold immutable units that are swapped in with volatile writes,
+ * and a resized segment table is only published once complete.
+ *
+ * The compound operations (putIfAbsent, compute, ...) run
+ * atomically under the segment lock; a mapping function that
+ * changes the same segment gets a ConcurrentModificationException.
+ *
+ * Iterators are weakly consistent: they never throw
+ * ConcurrentModificationException and may or may not reflect
+ * updates made after they were created.
+ * @param <K> Key values.
+ * @param <V> Values held.
+ */
+public class ConcurrentHashMapDouble<K, V> implements Map<K, V> {
+
+    private static final double loadFactor = 0.5;
+    private static final int start = 11;
+    private static final int defaultSegments = 16;
+
+    // Marks a removed unit so that probe chains stay intact.
+    private static final Unit<Object, Object> removed =
+        new Unit<>(null, null, 0);
+
+    private final Segment<K, V>[] segments;
+    private final int segmentShift;
+
+    /**
+     * Immutable key/value pair; a put swaps in a new unit.
+     * @param <K> Key values.
+     * @param <V> Values held.
+     */
+    private static final class Unit<K, V> {
+        final K key;
+        final V value;
+        final int hash;
+
+        Unit(K k, V v, int h) {
+            this.key = k;
+            this.value = v;
+            this.hash = h;
+        }
+    }
+
+    /**
+     * One lock stripe with its own open-addressing table.
+     * @param <K> Key values.
+     * @param <V> Values held.
+     */
+    private static final class Segment<K, V> extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        volatile AtomicReferenceArray<Unit<K, V>> table;
+        volatile int count;
+        int used;
+
+        // Bumped whenever a unit is added, dropped or moved, so
+        // that a compound operation can tell its function changed
+        // the segment. Caller holds the lock.
+        int modCount;
+
+        Segment() {
+            this.table = new AtomicReferenceArray<>(start);
+        }
+
+        // Slot holding a live unit for the key, or -1.
+        static <K, V> int find(AtomicReferenceArray<Unit<K, V>> table,
+                               K k, int h) {
+            int cap = table.length();
+            int begin = h % cap;
+            int check = begin;
+
+            for (int j = 1; j <= cap; j++) {
+                Unit<K, V> comp = table.get(check);
+                if (comp == null) {
+                    return -1;
+                } else if (comp != removed && comp.hash == h
+                        && comp.key.equals(k)) {
+                    return check;
+                }
+                check = (int) ((begin + (long) j * j) % cap);
+            }
+            return -1;
+        }
+
+        // Place a unit known not to be mapped. Caller holds the lock.
+        void place(AtomicReferenceArray<Unit<K, V>> table, Unit<K, V> unit) {
+            int cap = table.length();
+            int begin = unit.hash % cap;
+            int check = begin;
+
+            for (int j = 1; j <= cap; j++) {
+                Unit<K, V> exists = table.get(check);
+                if (exists == null || exists == removed) {
+                    if (exists == null) {
+                        this.used++;
+                    }
+                    table.set(check, unit);
+                    this.modCount++;
+                    return;
+                }
+                check = (int) ((begin + (long) j * j) % cap);
+            }
+            throw new IllegalStateException("no free slot for key " + unit.key);
+        }
+
+        // Rebuild into a fresh table and publish it in one
+        // volatile write. Caller holds the lock.
+        void resize() {
+            AtomicReferenceArray<Unit<K, V>> temp = this.table;
+            int newSize = temp.length();
+            if ((double) (this.count + 1) / newSize > loadFactor / 2) {
+                newSize = nextPrime(newSize);
+            }
+
+            AtomicReferenceArray<Unit<K, V>> fresh =
+                new AtomicReferenceArray<>(newSize);
+            this.used = 0;
+            for (int i = 0; i < temp.length(); i++) {
+                Unit<K, V> unit = temp.get(i);
+                if (unit != null && unit != removed) {
+                    this.place(fresh, unit);
+                }
+            }
+            this.table = fresh;
+            this.modCount++;
+        }
+
+        // Compound operations must not have their functions change
+        // the segment, since the probed table and slot would no
+        // longer be valid. Caller holds the lock.
+        void checkUnchanged(int expected) {
+            if (this.modCount != expected) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * Default constructor.
+     */
+    public ConcurrentHashMapDouble() {
+        this(defaultSegments);
+    }
+
+    /**
+     * Constructor with a number of lock stripes.
+     * @param concurrency expected number of concurrent writers;
+     *                    rounded up to a power of two.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentHashMapDouble(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        int n = 1;
+        int bits = 0;
+        while (n < concurrency && n < (1 << 16)) {
+            n <<= 1;
+            bits++;
+        }
+
+        this.segments = (Segment<K, V>[]) new Segment[n];
+        for (int i = 0; i < n; i++) {
+            this.segments[i] = new Segment<>();
+        }
+        this.segmentShift = 32 - bits;
+    }
+
+    /**
+     * Smallest prime at least twice the given capacity.
+     * @param cap current capacity.
+     * @return new capacity.
+     */
+    private static int nextPrime(int cap) {
+        int cur = 2 * cap + 1;
+        while (!isPrime(cur)) {
+            cur += 2;
+        }
+        return cur;
+    }
+
+    private static boolean isPrime(int n) {
+        for (int i = 3; (long) i * i <= n; i += 2) {
+            if (n % i == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Spread the hash so that both the segment (top bits) and the
+    // slot (remainder) depend on all of it.
+    private static int hash(Object k) {
+        int h = k.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & 0x7fffffff;
+    }
+
+    private Segment<K, V> segmentFor(int h) {
+        if (this.segments.length == 1) {
+            return this.segments[0];
+        }
+        return this.segments[(h << 1) >>> this.segmentShift];
+    }
+
+    // Lock-free lookup of the live unit for a key, or null.
+    private Unit<K, V> find(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int h = hash(k);
+        AtomicReferenceArray<Unit<K, V>> table = this.segmentFor(h).table;
+        int i = Segment.find(table, k, h);
+        return i < 0 ? null : table.get(i);
+    }
+
+    @Override
+    public void insert(K k, V v) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int h = hash(k);
+        Segment<K, V> seg = this.segmentFor(h);
+
+        seg.lock();
+        try {
+            if (Segment.find(seg.table, k, h) >= 0) {
+                throw new IllegalArgumentException("Key already in map");
+            }
+            if ((double) (seg.used + 1) / seg.table.length() > loadFactor) {
+                seg.resize();
+            }
+            seg.place(seg.table, new Unit<>(k, v, h));
+            seg.count++;
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    @Override
+    public V remove(K k) throws IllegalArgumentException {
+        return this.take(k, true);
+    }
+
+    // Shared by remove() and the iterator's remove(); sure says
+    // whether a missing key is an error or just gives null.
+    @SuppressWarnings("unchecked")
+    private V take(K k, boolean sure) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int h = hash(k);
+        Segment<K, V> seg = this.segmentFor(h);
+
+        seg.lock();
+        try {
+            AtomicReferenceArray<Unit<K, V>> table = seg.table;
+            int i = Segment.find(table, k, h);
+            if (i < 0) {
+                if (sure) {
+                    throw new IllegalArgumentException("cannot find key " + k);
+                }
+                return null;
+            }
+            V temp = table.get(i).value;
+            table.set(i, (Unit<K, V>) (Unit<?, ?>) removed);
+            seg.count--;
+            seg.modCount++;
+            return temp;
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    @Override
+    public void put(K k, V v) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int h = hash(k);
+        Segment<K, V> seg = this.segmentFor(h);
+
+        seg.lock();
+        try {
+            AtomicReferenceArray<Unit<K, V>> table = seg.table;
+            int i = Segment.find(table, k, h);
+            if (i < 0) {
+                throw new IllegalArgumentException("cannot find key " + k);
+            }
+            table.set(i, new Unit<>(k, v, h));
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    @Override
+    public V get(K k) throws IllegalArgumentException {
+        Unit<K, V> unit = this.find(k);
+        if (unit == null) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        return unit.value;
+    }
+
+    @Override
+    public boolean has(K k) {
+        return k != null && this.find(k) != null;
+    }
+
+    /**
+     * Number of mappings, summed over segments without
+     * locking, so it may be stale under concurrent updates.
+     * @return Number of key/value pairs in the map.
+     */
+    @Override
+    public int size() {
+        int n = 0;
+        for (Segment<K, V> seg : this.segments) {
+            n += seg.count;
+        }
+        return n;
+    }
+
+    @Override
+    public V getOrDefault(K k, V d) {
+        Unit<K, V> unit = this.find(k);
+        return unit == null ? d : unit.value;
+    }
+
+    @Override
+    public V putIfAbsent(K k, V v) {
+        return this.update(k, key -> v, (key, old) -> old != null ? old : v, true);
+    }
+
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return this.update(k, f, (key, old) -> old != null ? old : f.apply(key), false);
+    }
+
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.update(k, key -> f.apply(key, null), f, false);
+    }
+
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        return this.update(k, key -> v, (key, old) -> f.apply(old, v), false);
+    }
+
+    /**
+     * Atomic update shared by the compound operations. A missing
+     * key is inserted with absent's result, an existing one gets
+     * present's result; a null result means no mapping.
+     * @param k The key.
+     * @param absent Value for a missing key.
+     * @param present New value for an existing key.
+     * @param before true to return the value before, else after.
+     * @return Value before or after the update, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private V update(K k, Function<? super K, ? extends V> absent,
+                     BiFunction<? super K, ? super V, ? extends V> present,
+                     boolean before) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int h = hash(k);
+        Segment<K, V> seg = this.segmentFor(h);
+
+        seg.lock();
+        try {
+            AtomicReferenceArray<Unit<K, V>> table = seg.table;
+            int i = Segment.find(table, k, h);
+            int expected = seg.modCount;
+
+            if (i < 0) {
+                V v = absent.apply(k);
+                seg.checkUnchanged(expected);
+                if (v != null) {
+                    if ((double) (seg.used + 1) / table.length() > loadFactor) {
+                        seg.resize();
+                    }
+                    seg.place(seg.table, new Unit<>(k, v, h));
+                    seg.count++;
+                }
+                return before ? null : v;
+            }
+
+            V old = table.get(i).value;
+            V v = present.apply(k, old);
+            seg.checkUnchanged(expected);
+            if (v == null) {
+                table.set(i, (Unit<K, V>) (Unit<?, ?>) removed);
+                seg.count--;
+                seg.modCount++;
+            } else if (v != old) {
+                table.set(i, new Unit<>(k, v, h));
+            }
+            return before ? old : v;
+        } finally {
+            seg.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new KeyIterator();
+    }
+
+    /**
+     * Weakly consistent iterator over each segment's table
+     * as it was when the iterator reached that segment.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private int seg;
+        private AtomicReferenceArray<Unit<K, V>> table;
+        private int pos;
+        private Unit<K, V> next;
+        private K last;
+
+        KeyIterator() {
+            this.seg = -1;
+            this.advance();
+        }
+
+        private void advance() {
+            this.next = null;
+            while (true) {
+                while (this.table != null && this.pos < this.table.length()) {
+                    Unit<K, V> unit = this.table.get(this.pos++);
+                    if (unit != null && unit != removed) {
+                        this.next = unit;
+                        return;
+                    }
+                }
+                if (++this.seg >= segments.length) {
+                    return;
+                }
+                this.table = segments[this.seg].table;
+                this.pos = 0;
+            }
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public K next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next.key;
+            this.advance();
+            return this.last;
+        }
+
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            // Another thread may already have removed the key, which
+            // leaves nothing to do.
+            ConcurrentHashMapDouble.this.take(this.last, false);
+            this.last = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        for (Segment<K, V> seg : this.segments) {
+            AtomicReferenceArray<Unit<K, V>> table = seg.table;
+            for (int i = 0; i < table.length(); i++) {
+                Unit<K, V> unit = table.get(i);
+                if (unit != null && unit != removed) {
+                    s.append(unit.key);
+                    s.append(" : ");
+                    s.append(unit.value);
+                    s.append(", ");
+                }
+            }
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+
+}
@@ -1,34 +1,100 @@
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+
 import java.util.Iterator;
-import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import DS.SimpleArray;
 import javafx.util.Pair;
 
 /**
  * Class to implement a hashmap using a simple array
- * and quadratic probing to
+ * and quadratic probing to resolve collisions.
+ *
+ * In incremental mode a resize does not rehash the whole table
+ * at once: the old table is kept next to the new one and every
+ * insert/remove/put moves a few of its slots over, so no single
+ * operation pays for the full rehash.
+ *
+ * With Probing.ROBIN_HOOD the table uses linear probing where an
+ * inserted unit takes the slot of any unit closer to its home, and
+ * remove() shifts the rest of the cluster back instead of leaving a
+ * removed unit behind, so probe lengths stay short under churn.
+ *
+ * Maps can be sized up front from an expected number of keys, and
+ * insertAll() sizes the table once for a whole batch.
+ *
+ * setStatsEnabled(true) turns on counters for probe lengths and
+ * resizes, read back through stats().
  * @param <K>
  * @param <V>
  */
 public class HashMapDouble<K, V> implements Map<K, V> {
 
-    private static final double loadFactor = 0.5;
+    private static final double defaultLoadFactor = 0.5;
     private static final int start = 11;
+    private static final int migrateStep = 8;
+    private static final int noSlot = Integer.MIN_VALUE;
+
+    // writeTo() hands its text on in pieces of about this size.
+    private static final int writeChunk = 1 << 13;
+
+    // Capacities to grow through, each the smallest prime
+    // above twice the one before it.
+    private static final int[] primes = {
+        11, 23, 47, 97, 197, 397, 797, 1597, 3203, 6421, 12853,
+        25717, 51437, 102877, 205759, 411527, 823117, 1646237,
+        3292489, 6584983, 13169977, 26339969, 52679969, 105359939,
+        210719881, 421439783, 842879579, 1685759167,
+    };
 
     private SimpleArray<Unit<K, V>> data;
     private int size;
+    private int used;
     private int capacity;
 
+    // Table being drained by an incremental resize, or null.
+    private SimpleArray<Unit<K, V>> old;
+    private int oldCapacity;
+    private int migrated;
+    private final boolean incremental;
+
+    // Bumped on every change that can move or drop a unit,
+    // so that iterators can fail fast.
+    private int modCount;
+    private final Probing probing;
+    private final double loadFactor;
+
+    // Counters, or null while statistics are off.
+    private Stats stats;
+
+    /**
+     * Collision resolution strategies.
+     */
+    public enum Probing {
+        /** Quadratic probing; removed units are left as markers. */
+        QUADRATIC,
+        /** Linear Robin Hood probing with backward-shift removal. */
+        ROBIN_HOOD
+    }
+
 
 
     private static class Unit<K, V> {
         K key;
         V value;
+        int hash;
 
         Unit(K k, V v) {
         this.key = k;
         this.value = v;
+        this.hash = k.hashCode() & 0x7fffffff;
         }
 
 
@@ -45,77 +111,520 @@ public class HashMapDouble<K, V> implements Map<K, V> {
 
 
     public HashMapDouble() {
-        this.data = new SimpleArray<>(start, null);
-        this.capacity = start;
+        this(false);
+    }
+
+    /**
+     * Constructor choosing the resize mode.
+     * @param incremental true to spread each resize over
+     *                    later updates instead of rehashing at once.
+     */
+    public HashMapDouble(boolean incremental) {
+        this(Probing.QUADRATIC, incremental);
+    }
+
+    /**
+     * Constructor choosing the probing strategy.
+     * @param probing collision resolution to use.
+     */
+    public HashMapDouble(Probing probing) {
+        this(probing, false);
+    }
+
+    /**
+     * Constructor choosing probing strategy and resize mode.
+     * @param probing collision resolution to use.
+     * @param incremental true to spread each resize over
+     *                    later updates instead of rehashing at once.
+     */
+    public HashMapDouble(Probing probing, boolean incremental) {
+        this(probing, incremental, 0, defaultLoadFactor);
+    }
+
+    /**
+     * Constructor sized for an expected number of keys, so that
+     * no resize happens until there are more.
+     * @param expectedSize number of keys expected.
+     * @param loadFactor fraction of the table that may be used;
+     *                   at most 0.5 for quadratic probing.
+     */
+    public HashMapDouble(int expectedSize, double loadFactor) {
+        this(Probing.QUADRATIC, false, expectedSize, loadFactor);
+    }
+
+    /**
+     * Constructor setting every option.
+     * @param probing collision resolution to use.
+     * @param incremental true to spread each resize over
+     *                    later updates instead of rehashing at once.
+     * @param expectedSize number of keys expected.
+     * @param loadFactor fraction of the table that may be used;
+     *                   at most 0.5 for quadratic probing, which
+     *                   cannot reach more than half the slots.
+     */
+    public HashMapDouble(Probing probing, boolean incremental,
+                         int expectedSize, double loadFactor) {
+        if (probing == null || expectedSize < 0 || !(loadFactor > 0)
+                || loadFactor > (probing == Probing.QUADRATIC ? 0.5 : 0.9)) {
+            throw new IllegalArgumentException();
+        }
+        this.probing = probing;
+        this.incremental = incremental;
+        this.loadFactor = loadFactor;
+        this.capacity = primeAtLeast(Math.max(start, expectedSize / loadFactor + 1));
+        this.data = new SimpleArray<>(this.capacity, null);
+    }
+
+    /**
+     * Probe and resize counters of a map. The histograms count
+     * lookups by number of slots probed, the last bucket holding
+     * everything at or above its index. Table shape numbers are
+     * filled in when stats() is called.
+     */
+    public static final class Stats {
+        /** Buckets in each probe length histogram. */
+        public static final int buckets = 32;
+
+        private final long[] hits = new long[buckets];
+        private final long[] misses = new long[buckets];
+        private long resizes;
+        private long resizeNanos;
+        private int tombstones;
+        private int maxCluster;
+        private int capacity;
+        private int used;
+
+        // Slots probed so far by the lookup in progress, which
+        // may search both tables during an incremental resize.
+        private int pending;
+
+        private void record(long[] histogram, int probes) {
+            histogram[Math.min(probes, buckets - 1)]++;
+        }
+
+        /**
+         * Successful lookups by probe length.
+         * @return copy of the histogram.
+         */
+        public long[] hitProbes() {
+            return this.hits.clone();
+        }
+
+        /**
+         * Failed lookups by probe length.
+         * @return copy of the histogram.
+         */
+        public long[] missProbes() {
+            return this.misses.clone();
+        }
+
+        /**
+         * Number of resizes started.
+         * @return resize count.
+         */
+        public long resizes() {
+            return this.resizes;
+        }
+
+        /**
+         * Time spent allocating and filling new tables.
+         * @return nanoseconds.
+         */
+        public long resizeNanos() {
+            return this.resizeNanos;
+        }
+
+        /**
+         * Removed units still taking up slots.
+         * @return tombstone count.
+         */
+        public int tombstones() {
+            return this.tombstones;
+        }
+
+        /**
+         * Longest run of used slots in the table.
+         * @return cluster length.
+         */
+        public int maxCluster() {
+            return this.maxCluster;
+        }
+
+        /**
+         * Fraction of slots used by live or removed units.
+         * @return occupancy.
+         */
+        public double occupancy() {
+            return this.capacity == 0 ? 0 : (double) this.used / this.capacity;
+        }
+
+        /**
+         * Clear the lookup and resize counters.
+         */
+        public void reset() {
+            Arrays.fill(this.hits, 0);
+            Arrays.fill(this.misses, 0);
+            this.resizes = 0;
+            this.resizeNanos = 0;
+        }
+    }
+
+    /**
+     * Turn statistics on or off. Turning them on starts from zero.
+     * @param enabled true to count.
+     */
+    public void setStatsEnabled(boolean enabled) {
+        this.stats = enabled ? new Stats() : null;
+    }
+
+    /**
+     * Current statistics, with the tombstone count, longest
+     * cluster and occupancy worked out from the table now.
+     * @return the counters, or null if statistics are off.
+     */
+    public Stats stats() {
+        if (this.stats == null) {
+            return null;
+        }
+
+        int tombstones = 0;
+        int longest = 0;
+        int run = 0;
+        int first = -1;
+        for (int i = 0; i < this.capacity; i++) {
+            Unit<K, V> unit = this.data.get(i);
+            if (unit == null) {
+                if (first < 0) {
+                    first = run;
+                }
+                run = 0;
+                continue;
+            }
+            if (unit.value == null) {
+                tombstones++;
+            }
+            run++;
+            longest = Math.max(longest, run);
+        }
+        // A run at the end wraps around into the one at the start.
+        if (first >= 0) {
+            longest = Math.max(longest, run + first);
+        }
+
+        this.stats.tombstones = tombstones;
+        this.stats.maxCluster = longest;
+        this.stats.capacity = this.capacity;
+        this.stats.used = this.used;
+        return this.stats;
+    }
+
+    // Add the probes of one table search to the lookup in
+    // progress if statistics are on, and pass its result on.
+    private int probed(int result, int probes) {
+        if (this.stats != null) {
+            this.stats.pending += probes;
+        }
+        return result;
+    }
+
+    // Count a finished lookup once, whatever tables it searched.
+    private void counted(boolean hit) {
+        if (this.stats != null) {
+            this.stats.record(hit ? this.stats.hits : this.stats.misses, this.stats.pending);
+            this.stats.pending = 0;
+        }
     }
 
     private int nextPrime() {
-        int cur = this.capacity;
-        int n = 1;
-        while (true) {
-            for (int i = 1; i <= cur; i++) {
-                n *= i;
-            }
-            if ((n % (cur + 1)) / cur == 1) {
-                return cur + 1;
-            } else {
-                cur++;
+        return primeAtLeast(this.capacity + 1);
+    }
+
+    // Smallest capacity on the ladder that is at least n.
+    private static int primeAtLeast(double n) {
+        for (int p : primes) {
+            if (p >= n) {
+                return p;
             }
-            n = 1;
         }
+        throw new IllegalStateException("map is too large");
     }
 
+    /**
+     * Start a resize. Grows to the next prime unless most of the
+     * used slots are removed entries, in which case the table is
+     * rebuilt at the same capacity to clear them out.
+     */
     private void resize() {
-        int newSize = nextPrime();
-        SimpleArray<Unit<K, V>> temp = this.data;
+        this.finishMigration();
+
+        int newSize = this.capacity;
+        if ((double) (this.size + 1) / this.capacity > this.loadFactor / 2) {
+            newSize = nextPrime();
+        }
+        this.rehash(newSize);
+    }
+
+    // Move everything into a new table of the given capacity,
+    // or start doing so in incremental mode.
+    private void rehash(int newSize) {
+        long begin = this.stats == null ? 0 : System.nanoTime();
+        this.old = this.data;
+        this.oldCapacity = this.capacity;
+        this.migrated = 0;
+
         this.data = new SimpleArray<Unit<K, V>>(newSize, null);
-        for (Unit<K, V> unit : temp) {
-            if (unit != null) {
-                this.insert(unit);
+        this.capacity = newSize;
+        this.used = 0;
+        this.modCount++;
+        if (this.stats != null) {
+            this.stats.resizes++;
+            this.stats.resizeNanos += System.nanoTime() - begin;
+        }
+
+        if (!this.incremental) {
+            this.finishMigration();
+        }
+    }
+
+    /**
+     * Move up to the given number of slots from the old
+     * table into the current one.
+     * @param steps slots to move.
+     */
+    private void migrate(int steps) {
+        if (this.old == null) {
+            return;
+        }
+
+        long begin = this.stats == null ? 0 : System.nanoTime();
+        int end = Math.min(this.oldCapacity, this.migrated + steps);
+        for (int i = this.migrated; i < end; i++) {
+            Unit<K, V> unit = this.old.get(i);
+            if (unit != null && unit.value != null) {
+                this.place(unit);
             }
         }
-        this.capacity = newSize;
+        this.migrated = end;
+        this.modCount++;
+        if (this.stats != null) {
+            this.stats.resizeNanos += System.nanoTime() - begin;
+        }
+
+        if (this.migrated == this.oldCapacity) {
+            this.old = null;
+        }
+    }
+
+    private void finishMigration() {
+        if (this.old != null) {
+            this.migrate(this.oldCapacity - this.migrated);
+        }
     }
 
 
-    private Unit<K, V> find(K k) {
-        int check = hashVal(k);
+    // Slot for the key in the given table if it is mapped there.
+    // Otherwise a negative number -(slot + 1), where slot is where
+    // an insert of the key would go, or noSlot if the probe ran
+    // out. Units the migration has already copied stay in the old
+    // table so that its probe chains are not broken; they are
+    // always found in the current table first.
+    private int findIn(SimpleArray<Unit<K, V>> table, int cap, K k) {
+        int h = k.hashCode() & 0x7fffffff;
+        if (this.probing == Probing.ROBIN_HOOD) {
+            return this.findRobinHood(table, cap, k, h);
+        }
+
+        int check = h % cap;
         int unitsCmp = 1;
         int j = 0;
         int begin = check;
+        int hole = -1;
 
-        while (j < this.size) {
-            Unit<K, V> comp = this.data.get(check);
+        while (j < cap) {
+            Unit<K, V> comp = table.get(check);
 
             if (comp == null) {
-                return null;
-            } else if (comp.key.equals(k) && comp.value != null) {
-                return comp;
+                return this.probed(-((hole < 0 ? check : hole) + 1), j + 1);
+            } else if (comp.value != null && comp.hash == h
+                    && comp.key.equals(k)) {
+                return this.probed(check, j + 1);
             } else {
-                check = (begin + unitsCmp * unitsCmp) % this.capacity;
+                if (comp.value == null && hole < 0) {
+                    hole = check;
+                }
+                check = (int) ((begin + (long) unitsCmp * unitsCmp) % cap);
                 unitsCmp++;
             }
             j++;
         }
-        return null;
+        return this.probed(hole < 0 ? noSlot : -(hole + 1), j);
     }
 
+    // Robin Hood lookup: a unit sitting closer to its home
+    // than we are to ours means the key cannot be further on,
+    // and that is also where an insert of the key would start.
+    private int findRobinHood(SimpleArray<Unit<K, V>> table, int cap,
+                              K k, int h) {
+        int check = h % cap;
+
+        for (int dist = 0; dist < cap; dist++) {
+            Unit<K, V> comp = table.get(check);
+
+            if (comp == null || distance(comp, check, cap) < dist) {
+                return this.probed(-(check + 1), dist + 1);
+            } else if (comp.value != null && comp.hash == h
+                    && comp.key.equals(k)) {
+                return this.probed(check, dist + 1);
+            }
+            check = (check + 1) % cap;
+        }
+        return this.probed(noSlot, cap);
 
-    private int hashVal(K k) {
-        return Math.abs(k.hashCode()) % this.capacity;
+    }
+
+    // How far the unit in the given slot is from its home.
+    private int distance(Unit<K, V> unit, int slot, int cap) {
+        int home = unit.hash % cap;
+        return slot >= home ? slot - home : slot + cap - home;
+    }
+
+
+    private Unit<K, V> find(K k) {
+        Unit<K, V> unit = null;
+        int i = this.findIn(this.data, this.capacity, k);
+        if (i >= 0) {
+            unit = this.data.get(i);
+        } else if (this.old != null) {
+            i = this.findIn(this.old, this.oldCapacity, k);
+            if (i >= 0) {
+                unit = this.old.get(i);
+            }
+        }
+        this.counted(unit != null);
+        return unit;
+    }
+
+
+    // Look a key up for an operation that may insert it. Room is
+    // made first, so the result of the probe stays valid for
+    // placeAt(); a unit still in the old table is moved over right
+    // away. Returns the key's slot in the current table, or the
+    // negative insert position from findIn().
+    private int locate(K k) {
+        this.migrate(migrateStep);
+        if ((double) (this.used + 1) / this.capacity > this.loadFactor) {
+            resize();
+        }
+
+        int i = this.findIn(this.data, this.capacity, k);
+        if (i >= 0 || this.old == null) {
+            this.counted(i >= 0);
+            return i;
+        }
+
+        int j = this.findIn(this.old, this.oldCapacity, k);
+        if (j < 0) {
+            this.counted(false);
+            return i;
+        }
+
+        // Leave a removed unit with the same hash behind, so the
+        // old table's probe chains and the migration skip it.
+        Unit<K, V> unit = this.old.get(j);
+        Unit<K, V> dead = new Unit<K, V>(unit.key, null);
+        this.old.put(j, dead);
+        this.placeAt(i, unit);
+        this.size--;
+        i = this.findIn(this.data, this.capacity, k);
+        this.counted(true);
+        return i;
+    }
+
+    // Put a new unit at the insert position locate() returned.
+    private void placeAt(int i, Unit<K, V> unit) {
+        if (i == noSlot) {
+            throw new IllegalStateException("no free slot for key " + unit.key);
+        }
+        int slot = -(i + 1);
+
+        if (this.probing == Probing.ROBIN_HOOD) {
+            this.placeRobinHood(unit, slot, distance(unit, slot, this.capacity));
+        } else {
+            if (this.data.get(slot) == null) {
+                this.used++;
+            }
+            this.data.put(slot, unit);
+        }
+        this.size++;
+        this.modCount++;
+    }
+
+    // Compound operations must not have their functions change
+    // the map, since the probed slot would no longer be valid.
+    private void checkUnchanged(int expected) {
+        if (this.modCount != expected) {
+            throw new ConcurrentModificationException();
+        }
     }
 
 
     public void insert(K k, V v) {
         if (k == null) {
             throw new IllegalArgumentException();
-        } else if (this.find(k) != null) {
+        }
+        int i = this.locate(k);
+        if (i >= 0) {
             throw new IllegalArgumentException();
-        } else {
-            Unit<K, V> unit = new Unit<K, V>(k, v);
-            insert(unit);
         }
+        this.placeAt(i, new Unit<K, V>(k, v));
+    }
+
+    /**
+     * Insert every pair of another map. The table is sized once
+     * for all of them up front.
+     * @param m map to copy.
+     * @param <L> Key type of m.
+     * @throws IllegalArgumentException if a key is already mapped;
+     *         pairs before it stay inserted.
+     */
+    public <L extends K> void insertAll(Map<L, ? extends V> m) {
+        if (m == null) {
+            throw new IllegalArgumentException();
+        }
+        this.reserve(m.size());
+        for (L k : m) {
+            this.insert(k, m.get(k));
+        }
+    }
+
+    /**
+     * Insert a batch of pairs. If the batch is a Collection the
+     * table is sized once for all of it up front.
+     * @param pairs pairs to insert.
+     * @throws IllegalArgumentException if a key is null or already
+     *         mapped; pairs before it stay inserted.
+     */
+    public void insertAll(Iterable<? extends Pair<? extends K, ? extends V>> pairs) {
+        if (pairs == null) {
+            throw new IllegalArgumentException();
+        }
+        if (pairs instanceof Collection) {
+            this.reserve(((Collection<?>) pairs).size());
+        }
+        for (Pair<? extends K, ? extends V> pair : pairs) {
+            this.insert(pair.getKey(), pair.getValue());
+        }
+    }
 
+    // Make room for n more keys in one go: a single full rehash
+    // (even in incremental mode) instead of one per doubling.
+    private void reserve(int n) {
+        this.finishMigration();
+        if ((double) (this.used + n) / this.capacity <= this.loadFactor) {
+            return;
+        }
+        this.rehash(primeAtLeast((this.size + n) / this.loadFactor + 1));
+        this.finishMigration();
     }
 
     public boolean has(K k) {
@@ -128,17 +637,14 @@ public class HashMapDouble<K, V> implements Map<K, V> {
 
 
 
-    private void insert(Unit<K, V> unit) {
-
-        if ((double) size / capacity > loadFactor) {
-            resize();
+    // Put a unit known not to be live in the current table.
+    private void place(Unit<K, V> unit) {
+        if (this.probing == Probing.ROBIN_HOOD) {
+            this.placeRobinHood(unit, unit.hash % this.capacity, 0);
+            return;
         }
 
-        if (unit.key == null) {
-            throw new IllegalArgumentException();
-        }
-
-        int check = this.hashVal(unit.key);
+        int check = unit.hash % this.capacity;
         int j = 0;
         int unitsCmp = 1;
         int begin = check;
@@ -147,16 +653,60 @@ public class HashMapDouble<K, V> implements Map<K, V> {
             Unit<K, V> exists = this.data.get(check);
 
             if (exists == null || exists.value == null) {
+                if (exists == null) {
+                    this.used++;
+                }
                 this.data.put(check, unit);
-                this.size++;
                 return;
             } else {
-                check = (begin + unitsCmp * unitsCmp) % this.capacity;
+                check = (int) ((begin + (long) unitsCmp * unitsCmp) % this.capacity);
                 unitsCmp++;
             }
 
             j++;
         }
+        throw new IllegalStateException("no free slot for key " + unit.key);
+    }
+
+    // Walk on from the given slot (dist away from the unit's home),
+    // swapping the unit with any unit that is closer to its own
+    // home, until an empty slot turns up.
+    private void placeRobinHood(Unit<K, V> unit, int check, int dist) {
+        for (int j = 0; j < this.capacity; j++) {
+            Unit<K, V> exists = this.data.get(check);
+
+            if (exists == null) {
+                this.data.put(check, unit);
+                this.used++;
+                return;
+            }
+
+            int existsDist = distance(exists, check, this.capacity);
+            if (existsDist < dist) {
+                this.data.put(check, unit);
+                unit = exists;
+                dist = existsDist;
+            }
+            check = (check + 1) % this.capacity;
+            dist++;
+        }
+        throw new IllegalStateException("no free slot for key " + unit.key);
+    }
+
+    // Empty the given slot of the current table and pull the
+    // units behind it back one step, until one is at its home.
+    private void shiftBack(int slot) {
+        int next = (slot + 1) % this.capacity;
+        Unit<K, V> unit = this.data.get(next);
+
+        while (unit != null && distance(unit, next, this.capacity) > 0) {
+            this.data.put(slot, unit);
+            slot = next;
+            next = (next + 1) % this.capacity;
+            unit = this.data.get(next);
+        }
+        this.data.put(slot, null);
+        this.used--;
     }
 
 
@@ -164,18 +714,37 @@ public class HashMapDouble<K, V> implements Map<K, V> {
         if (k == null) {
             throw new IllegalArgumentException();
         }
-        if (!this.has(k)) {
+        SimpleArray<Unit<K, V>> table = this.data;
+        int i = this.findIn(this.data, this.capacity, k);
+        if (i < 0 && this.old != null) {
+            table = this.old;
+            i = this.findIn(this.old, this.oldCapacity, k);
+        }
+        this.counted(i >= 0);
+        if (i < 0) {
             throw new IllegalArgumentException();
         }
 
-        int check = this.hashVal(k);
-        Unit<K, V> unit = this.data.get(check);
+        V temp = this.removeAt(table, i);
+        this.migrate(migrateStep);
+        return temp;
+
+    }
+
+    // Remove the live unit in the given slot of either table.
+    private V removeAt(SimpleArray<Unit<K, V>> table, int slot) {
+        Unit<K, V> unit = table.get(slot);
+
+        // Clearing the value also marks any copy the
+        // migration left in the old table as removed.
         V temp = unit.value;
         unit.value = null;
-        this.data.put(check, unit);
+        if (table == this.data && this.probing == Probing.ROBIN_HOOD) {
+            this.shiftBack(slot);
+        }
         this.size--;
+        this.modCount++;
         return temp;
-
     }
 
 
@@ -183,21 +752,23 @@ public class HashMapDouble<K, V> implements Map<K, V> {
         if (k == null) {
             throw new IllegalArgumentException();
         }
-        if (!this.has(k)) {
+        Unit<K, V> unit = this.find(k);
+        if (unit == null) {
             throw new IllegalArgumentException();
         }
 
-        this.find(k).value = v;
+        unit.value = v;
+        this.migrate(migrateStep);
     }
 
     public V get(K k) {
         if (k == null) {
             throw new IllegalArgumentException();
         }
-        if (!this.has(k)) {
+        Unit<K, V> unit = this.find(k);
+        if (unit == null) {
             throw new IllegalArgumentException();
         }
-        Unit<K, V> unit = this.find(k);
         return unit.value;
 
     }
@@ -206,38 +777,250 @@ public class HashMapDouble<K, V> implements Map<K, V> {
         return this.size;
     }
 
+    @Override
+    public V getOrDefault(K k, V d) {
+        if (k == null) {
+            throw new IllegalArgumentException();
+        }
+        Unit<K, V> unit = this.find(k);
+        return unit == null ? d : unit.value;
+    }
+
+    @Override
+    public V putIfAbsent(K k, V v) {
+        if (k == null) {
+            throw new IllegalArgumentException();
+        }
+        int i = this.locate(k);
+        if (i >= 0) {
+            return this.data.get(i).value;
+        }
+        this.placeAt(i, new Unit<K, V>(k, v));
+        return null;
+    }
+
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        if (k == null) {
+            throw new IllegalArgumentException();
+        }
+        int i = this.locate(k);
+        if (i >= 0) {
+            return this.data.get(i).value;
+        }
+
+        int expected = this.modCount;
+        V v = f.apply(k);
+        this.checkUnchanged(expected);
+        if (v != null) {
+            this.placeAt(i, new Unit<K, V>(k, v));
+        }
+        return v;
+    }
+
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        if (k == null) {
+            throw new IllegalArgumentException();
+        }
+        int i = this.locate(k);
+        Unit<K, V> unit = i >= 0 ? this.data.get(i) : null;
+
+        int expected = this.modCount;
+        V v = f.apply(k, unit == null ? null : unit.value);
+        this.checkUnchanged(expected);
+        return this.update(i, unit, k, v);
+    }
+
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        if (k == null) {
+            throw new IllegalArgumentException();
+        }
+        int i = this.locate(k);
+        if (i < 0) {
+            this.placeAt(i, new Unit<K, V>(k, v));
+            return v;
+        }
+        Unit<K, V> unit = this.data.get(i);
+
+        int expected = this.modCount;
+        V merged = f.apply(unit.value, v);
+        this.checkUnchanged(expected);
+        return this.update(i, unit, k, merged);
+    }
+
+    // Store the result of compute/merge for the slot locate()
+    // returned: a null value removes the key.
+    private V update(int i, Unit<K, V> unit, K k, V v) {
+        if (v == null) {
+            if (unit != null) {
+                this.removeAt(this.data, i);
+            }
+        } else if (unit != null) {
+            unit.value = v;
+        } else {
+            this.placeAt(i, new Unit<K, V>(k, v));
+        }
+        return v;
+    }
+
 
     public Iterator<K> iterator() {
-        ArrayList<K> keys = new ArrayList<>();
-        for (Unit<K, V> unit : this.data) {
-            if (unit != null && unit.value != null) {
-                keys.add(unit.key);
+        return new KeyIterator();
+    }
+
+    /**
+     * Iterator walking the tables in place: first the current
+     * table, then whatever part of the old one has not been
+     * migrated yet. Fails fast if the map is changed other
+     * than through the iterator.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private SimpleArray<Unit<K, V>> table;
+        private int cap;
+        private int base;
+        private int pos;
+        private int lastPos;
+        private int lastSlot;
+        private SimpleArray<Unit<K, V>> lastTable;
+        private int expected;
+
+        KeyIterator() {
+            this.table = data;
+            this.cap = capacity;
+            this.lastPos = -1;
+            this.expected = modCount;
+
+            // Start just past an empty slot: Robin Hood removal
+            // only shifts units back within a cluster, so none
+            // can wrap around into the part already visited.
+            while (this.base < this.cap && data.get(this.base) != null) {
+                this.base++;
             }
+            this.advance();
+        }
+
+        private int slot(int p) {
+            return (this.base + p) % this.cap;
+        }
+
+        private boolean live(int p) {
+            Unit<K, V> unit = this.table.get(this.slot(p));
+            return unit != null && unit.value != null;
+        }
+
+        // Move pos to the next live unit, switching over to the
+        // old table once the current one is done.
+        private void advance() {
+            while (true) {
+                while (this.pos < this.cap && !this.live(this.pos)) {
+                    this.pos++;
+                }
+                if (this.pos < this.cap || this.table != data || old == null) {
+                    return;
+                }
+                this.table = old;
+                this.cap = oldCapacity;
+                this.base = 0;
+                this.pos = migrated;
+            }
+        }
+
+        public boolean hasNext() {
+            return this.pos < this.cap;
+        }
+
+        public K next() {
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            K k = this.table.get(this.slot(this.pos)).key;
+            this.lastTable = this.table;
+            this.lastPos = this.pos;
+            this.lastSlot = this.slot(this.pos);
+            this.pos++;
+            this.advance();
+            return k;
+        }
+
+        public void remove() {
+            if (this.lastPos < 0) {
+                throw new IllegalStateException();
+            }
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(this.lastTable, this.lastSlot);
+
+            // A backward shift may have pulled an unvisited
+            // unit into the slot we just emptied.
+            if (this.lastTable == this.table) {
+                this.pos = this.lastPos;
+                this.advance();
+            }
+            this.lastPos = -1;
+            this.expected = modCount;
         }
-        return keys.iterator();
     }
 
 
-    public String toString() {
+    /**
+     * Write the map out as toString() would, reading each value
+     * straight from its unit instead of looking the key up again,
+     * and handing the text to out in pieces of about writeChunk
+     * chars, so a huge map never has to fit in one string.
+     * @param out where the text goes.
+     * @throws IOException if out does.
+     */
+    public void writeTo(Appendable out) throws IOException {
         StringBuilder s = new StringBuilder();
         s.append("{");
+        int n = this.writeUnits(this.data, 0, this.capacity, 0, s, out);
+        if (this.old != null) {
+            this.writeUnits(this.old, this.migrated, this.oldCapacity, n, s, out);
+        }
+        s.append("}");
+        out.append(s);
+    }
 
-        for (K k : this) {
-            s.append(k);
+    // Append the live units in slots from to to - 1 of table, after
+    // the n already written; returns the new count.
+    private int writeUnits(SimpleArray<Unit<K, V>> table, int from, int to,
+                           int n, StringBuilder s, Appendable out)
+            throws IOException {
+        for (int i = from; i < to; i++) {
+            Unit<K, V> unit = table.get(i);
+            if (unit == null || unit.value == null) {
+                continue;
+            }
+            if (n > 0) {
+                s.append(", ");
+            }
+            n++;
+            s.append(unit.key);
             s.append(" : ");
-            s.append(this.get(k));
-            s.append(", ");
+            s.append(unit.value);
+            if (s.length() >= writeChunk) {
+                out.append(s);
+                s.setLength(0);
+            }
         }
+        return n;
+    }
 
-        int length = s.length();
-        if (length > 1) {
-            s.setLength(length - 2);
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        try {
+            this.writeTo(s);
+        } catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new UncheckedIOException(e);
         }
-
-        s.append("}");
         return s.toString();
-
-
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,320 @@
+
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Hashmap from int keys to double values, for distance and
+ * weight tables. Same probing as IntObjectHashMap, but the
+ * values are kept in a primitive array as well, so the
+ * primitive get/put never box anything.
+ */
+public class IntDoubleHashMap implements Map<Integer, Double> {
+
+    private static final double loadFactor = 0.5;
+    private static final int start = 11;
+
+    // Slot states, kept in a parallel byte array.
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    private int[] keys;
+    private double[] values;
+    private byte[] states;
+    private int size;
+    private int used;
+    private int capacity;
+
+    /**
+     * Default constructor.
+     */
+    public IntDoubleHashMap() {
+        this.allocate(start);
+    }
+
+    /**
+     * Set up empty backing arrays of the given capacity.
+     * @param cap capacity (should be prime).
+     */
+    private void allocate(int cap) {
+        this.keys = new int[cap];
+        this.values = new double[cap];
+        this.states = new byte[cap];
+        this.capacity = cap;
+        this.size = 0;
+        this.used = 0;
+    }
+
+    /**
+     * Smallest prime at least twice the current capacity.
+     * @return new capacity.
+     */
+    private int nextPrime() {
+        int cur = 2 * this.capacity + 1;
+        while (!isPrime(cur)) {
+            cur += 2;
+        }
+        return cur;
+    }
+
+    /**
+     * Trial division primality check for odd n.
+     * @param n number to check.
+     * @return true if n is prime.
+     */
+    private static boolean isPrime(int n) {
+        for (int i = 3; (long) i * i <= n; i += 2) {
+            if (n % i == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spread the bits of the key before reducing it
+     * modulo the capacity.
+     * @param k key.
+     * @return starting slot.
+     */
+    private int hashVal(int k) {
+        int h = k * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % this.capacity;
+    }
+
+    /**
+     * Find the slot holding the key.
+     * @param k key to look for.
+     * @return slot index, or -1 if not mapped.
+     */
+    private int find(int k) {
+        int begin = this.hashVal(k);
+        int check = begin;
+
+        for (int j = 1; j <= this.capacity; j++) {
+            byte s = this.states[check];
+            if (s == EMPTY) {
+                return -1;
+            } else if (s == FULL && this.keys[check] == k) {
+                return check;
+            }
+            check = (int) ((begin + (long) j * j) % this.capacity);
+        }
+        return -1;
+    }
+
+    /**
+     * Rehash every live entry into a larger table.
+     */
+    private void resize() {
+        int[] oldKeys = this.keys;
+        double[] oldValues = this.values;
+        byte[] oldStates = this.states;
+
+        // Only grow when live entries need the room; if it
+        // was tombstones filling the table, rehash in place.
+        int cap = this.capacity;
+        if ((double) (this.size + 1) / cap > loadFactor / 2) {
+            cap = this.nextPrime();
+        }
+        this.allocate(cap);
+        for (int i = 0; i < oldStates.length; i++) {
+            if (oldStates[i] == FULL) {
+                this.insertFresh(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Place a key known not to be mapped; the first
+     * empty or deleted slot on its probe path is reused.
+     * @param k key.
+     * @param v value.
+     */
+    private void insertFresh(int k, double v) {
+        int begin = this.hashVal(k);
+        int check = begin;
+
+        for (int j = 1; j <= this.capacity; j++) {
+            if (this.states[check] != FULL) {
+                if (this.states[check] == EMPTY) {
+                    this.used++;
+                }
+                this.keys[check] = k;
+                this.values[check] = v;
+                this.states[check] = FULL;
+                this.size++;
+                return;
+            }
+            check = (int) ((begin + (long) j * j) % this.capacity);
+        }
+        throw new IllegalStateException("probe sequence exhausted");
+    }
+
+    /**
+     * Insert a new key/value pair.
+     * @param k The key.
+     * @param v The value.
+     * @throws IllegalArgumentException If k is already mapped.
+     */
+    public void insert(int k, double v) throws IllegalArgumentException {
+        if (this.find(k) >= 0) {
+            throw new IllegalArgumentException("Key already in map");
+        }
+        if ((double) (this.used + 1) / this.capacity > loadFactor) {
+            this.resize();
+        }
+        this.insertFresh(k, v);
+    }
+
+    /**
+     * Remove a key/value pair.
+     * @param k The key.
+     * @return The value that was associated with k.
+     * @throws IllegalArgumentException If k is not mapped.
+     */
+    public double remove(int k) throws IllegalArgumentException {
+        int i = this.find(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        double temp = this.values[i];
+        this.values[i] = 0;
+        this.states[i] = DELETED;
+        this.size--;
+        return temp;
+    }
+
+    /**
+     * Update the value of a key.
+     * @param k The key.
+     * @param v The new value.
+     * @throws IllegalArgumentException If k is not mapped.
+     */
+    public void put(int k, double v) throws IllegalArgumentException {
+        int i = this.find(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        this.values[i] = v;
+    }
+
+    /**
+     * Get the value of a key.
+     * @param k The key.
+     * @return The value associated with k.
+     * @throws IllegalArgumentException If k is not mapped.
+     */
+    public double get(int k) throws IllegalArgumentException {
+        int i = this.find(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        return this.values[i];
+    }
+
+    /**
+     * Check if a key is mapped.
+     * @param k The key.
+     * @return true if mapped, false otherwise.
+     */
+    public boolean has(int k) {
+        return this.find(k) >= 0;
+    }
+
+    @Override
+    public void insert(Integer k, Double v) throws IllegalArgumentException {
+        if (k == null || v == null) {
+            throw new IllegalArgumentException("cannot handle null key or value");
+        }
+        this.insert(k.intValue(), v.doubleValue());
+    }
+
+    @Override
+    public Double remove(Integer k) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.remove(k.intValue());
+    }
+
+    @Override
+    public void put(Integer k, Double v) throws IllegalArgumentException {
+        if (k == null || v == null) {
+            throw new IllegalArgumentException("cannot handle null key or value");
+        }
+        this.put(k.intValue(), v.doubleValue());
+    }
+
+    @Override
+    public Double get(Integer k) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.get(k.intValue());
+    }
+
+    @Override
+    public boolean has(Integer k) {
+        return k != null && this.has(k.intValue());
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    // Walks the key array directly, boxing each key only
+    // as it is handed out.
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < states.length && states[i] != FULL) {
+                    i++;
+                }
+                return i;
+            }
+
+            public boolean hasNext() {
+                return this.next < states.length;
+            }
+
+            public Integer next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int k = keys[this.next];
+                this.next = this.advance(this.next + 1);
+                return k;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        for (int i = 0; i < this.states.length; i++) {
+            if (this.states[i] == FULL) {
+                s.append(this.keys[i]);
+                s.append(" : ");
+                s.append(this.values[i]);
+                s.append(", ");
+            }
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+
+}
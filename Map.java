@@ -1,5 +1,8 @@
 
 
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
 /**
  * Maps from arbitrary keys to arbitrary values.
  *
@@ -57,4 +60,122 @@ public interface Map<K, V> extends Iterable<K> {
      * @return Number of key/value pairs in the map.
      */
     int size();
+
+    /**
+     * Get the value associated with a key, or a default.
+     *
+     * @param k The key.
+     * @param d The value to return if k is not mapped.
+     * @return The value associated with k, or d.
+     * @throws IllegalArgumentException If k is null.
+     */
+    default V getOrDefault(K k, V d) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.has(k) ? this.get(k) : d;
+    }
+
+    /**
+     * Insert a key/value pair unless the key is already mapped.
+     *
+     * @param k The key.
+     * @param v The value to be associated with k.
+     * @return The value already associated with k, or null if
+     *     v was inserted.
+     * @throws IllegalArgumentException If k is null.
+     */
+    default V putIfAbsent(K k, V v) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (this.has(k)) {
+            return this.get(k);
+        }
+        this.insert(k, v);
+        return null;
+    }
+
+    /**
+     * Get the value associated with a key, inserting the value
+     * computed by f first if the key is not mapped. Nothing is
+     * inserted if f returns null.
+     *
+     * @param k The key.
+     * @param f Computes the value for an unmapped k.
+     * @return The value now associated with k, or null.
+     * @throws IllegalArgumentException If k is null.
+     */
+    default V computeIfAbsent(K k, Function<? super K, ? extends V> f)
+        throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (this.has(k)) {
+            return this.get(k);
+        }
+        V v = f.apply(k);
+        if (v != null) {
+            this.insert(k, v);
+        }
+        return v;
+    }
+
+    /**
+     * Replace the value associated with a key by the one f
+     * computes from it (null if k is not mapped). If f returns
+     * null the key ends up not mapped.
+     *
+     * @param k The key.
+     * @param f Computes the new value from k and the old value.
+     * @return The value now associated with k, or null.
+     * @throws IllegalArgumentException If k is null.
+     */
+    default V compute(K k, BiFunction<? super K, ? super V, ? extends V> f)
+        throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        boolean mapped = this.has(k);
+        V v = f.apply(k, mapped ? this.get(k) : null);
+        if (v == null) {
+            if (mapped) {
+                this.remove(k);
+            }
+        } else if (mapped) {
+            this.put(k, v);
+        } else {
+            this.insert(k, v);
+        }
+        return v;
+    }
+
+    /**
+     * Insert a key/value pair, or if the key is already mapped
+     * combine the old value with v using f. If f returns null
+     * the key ends up not mapped.
+     *
+     * @param k The key.
+     * @param v The value to insert or combine.
+     * @param f Combines the old value with v.
+     * @return The value now associated with k, or null.
+     * @throws IllegalArgumentException If k is null.
+     */
+    default V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f)
+        throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (!this.has(k)) {
+            this.insert(k, v);
+            return v;
+        }
+        V merged = f.apply(this.get(k), v);
+        if (merged == null) {
+            this.remove(k);
+        } else {
+            this.put(k, merged);
+        }
+        return merged;
+    }
 }
@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Checks that the compound operations of the ordered maps and of
+ * ConcurrentHashMapDouble refuse a mapping function that changes the
+ * map, rather than attaching the result to a path or slot that is no
+ * longer valid.
+ *
+ * Run with: java MutatingFunctionTest
+ */
+public final class MutatingFunctionTest {
+
+    private MutatingFunctionTest() {
+    }
+
+    /**
+     * Run the checks for every map.
+     * @param args ignored.
+     */
+    public static void main(String[] args) {
+        List<Supplier<OrderedMap<Integer, Integer>>> makers = new ArrayList<>();
+        makers.add(AvlTreeMap::new);
+        makers.add(TreapMap::new);
+        makers.add(BinarySearchTreeMap::new);
+        makers.add(ArrayAvlTreeMap::new);
+        makers.add(() -> new BTreeMap<Integer, Integer>(4));
+
+        for (Supplier<OrderedMap<Integer, Integer>> maker : makers) {
+            absentInserts(maker.get());
+            presentRemoves(maker.get());
+        }
+
+        // One segment, so that every key shares the lock and table
+        // of the key being updated.
+        absentInserts(new ConcurrentHashMapDouble<Integer, Integer>(1));
+        presentRemoves(new ConcurrentHashMapDouble<Integer, Integer>(1));
+        ConcurrentHashMapDouble<Integer, Integer> hash = filled(
+            new ConcurrentHashMapDouble<Integer, Integer>(1));
+        expectThrow(hash, () -> hash.computeIfAbsent(35, k -> {
+            hash.insert(35, 1);
+            return 2;
+        }));
+
+        TreapMap<Integer, Integer> treap = filled(new TreapMap<>());
+        treap.setAdaptive(true);
+        expectThrow(treap, () -> treap.compute(5, (k, v) -> {
+            for (int i = 0; i < 1000; i++) {
+                treap.get(i % 8);
+            }
+            return 0;
+        }));
+
+        AvlTreeMap<Integer, Integer> avl = filled(new AvlTreeMap<>());
+        expectThrow(avl, () -> avl.computeIfAbsent(35, k -> {
+            avl.snapshot();
+            return 0;
+        }));
+
+        System.out.println("ok");
+    }
+
+    // A function for a missing key that inserts other keys.
+    private static void absentInserts(Map<Integer, Integer> m) {
+        filled(m);
+        expectThrow(m, () -> m.computeIfAbsent(35, k -> {
+            for (int i = 100; i < 140; i++) {
+                m.insert(i, i);
+            }
+            return 0;
+        }));
+    }
+
+    // A function for an existing key that removes other keys.
+    private static void presentRemoves(Map<Integer, Integer> m) {
+        filled(m);
+        expectThrow(m, () -> m.merge(3, 1, (a, b) -> {
+            m.remove(2);
+            m.remove(4);
+            return a + b;
+        }));
+    }
+
+    private static <M extends Map<Integer, Integer>> M filled(M m) {
+        for (int i = 0; i < 8; i++) {
+            m.insert(i, i);
+        }
+        return m;
+    }
+
+    // The operation must throw, and leave a map whose size agrees
+    // with its iterator and whose keys can all be found.
+    private static void expectThrow(Map<Integer, Integer> m, Runnable op) {
+        try {
+            op.run();
+            throw new AssertionError(m.getClass().getName() + ": no exception");
+        } catch (ConcurrentModificationException e) {
+            // expected
+        }
+
+        int n = 0;
+        for (Integer k : m) {
+            if (!m.has(k)) {
+                throw new AssertionError(m.getClass().getName() + ": lost " + k);
+            }
+            n++;
+        }
+        if (n != m.size()) {
+            throw new AssertionError(m.getClass().getName() + ": size "
+                + m.size() + " but " + n + " keys");
+        }
+    }
+}
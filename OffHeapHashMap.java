@@ -0,0 +1,463 @@
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Hashmap from byte[] keys to byte[] values that keeps all of
+ * its data in direct ByteBuffers, outside the garbage collected
+ * heap. Uses the same quadratic probing over a prime capacity
+ * as HashMapDouble.
+ *
+ * Entries are appended to an arena made of fixed size chunks, each
+ * one laid out as key length, value length, key bytes, value bytes.
+ * The slot table is a direct buffer as well, holding the key's hash
+ * and a reference (chunk, offset) to its entry, so lookups compare
+ * the key against the arena bytes without building any objects.
+ * Space of removed or replaced entries is reclaimed by compacting
+ * the arena once it is more than half garbage.
+ *
+ * Keys are compared by content. get/remove return fresh copies,
+ * and the iterator hands out copies of the keys.
+ */
+public class OffHeapHashMap implements Map<byte[], byte[]> {
+
+    private static final double loadFactor = 0.5;
+    private static final int start = 11;
+    private static final int defaultChunk = 1 << 24;
+
+    // Slot layout: int hash, long reference to the entry.
+    private static final int slotBytes = 12;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    // Entry header: int key length, int value length.
+    private static final int header = 8;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    private int used;
+
+    private final int chunkSize;
+    private List<ByteBuffer> chunks;
+    private long liveBytes;
+    private long deadBytes;
+    private int modCount;
+
+    /**
+     * Default constructor, using 16MB arena chunks.
+     */
+    public OffHeapHashMap() {
+        this(defaultChunk);
+    }
+
+    /**
+     * Constructor with a given arena chunk size. Entries larger
+     * than a chunk get a chunk of their own.
+     * @param chunkSize bytes per arena chunk.
+     */
+    public OffHeapHashMap(int chunkSize) {
+        if (chunkSize < header) {
+            throw new IllegalArgumentException("chunk size too small");
+        }
+        this.chunkSize = chunkSize;
+        this.chunks = new ArrayList<>();
+        this.slots = ByteBuffer.allocateDirect(tableBytes(start));
+        this.capacity = start;
+    }
+
+    // Bytes for a slot table of the given capacity. A ByteBuffer
+    // is indexed by int, so this fails, before anything is replaced,
+    // once the table would pass 2GB; keeping capacity below that
+    // bound is also what keeps i * slotBytes in the slot accessors
+    // from overflowing.
+    private static int tableBytes(int cap) {
+        long n = (long) cap * slotBytes;
+        if (cap < 0 || n > Integer.MAX_VALUE) {
+            throw new IllegalStateException("slot table too large: " + cap + " slots");
+        }
+        return (int) n;
+    }
+
+    private static int nextPrime(int cap) {
+        int cur = 2 * cap + 1;
+        while (!isPrime(cur)) {
+            cur += 2;
+        }
+        return cur;
+    }
+
+    private static boolean isPrime(int n) {
+        for (int i = 3; (long) i * i <= n; i += 2) {
+            if (n % i == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hashVal(byte[] k) {
+        int h = Arrays.hashCode(k) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & 0x7fffffff;
+    }
+
+    // References are chunk index and offset, plus one so that
+    // zero can mean an empty slot.
+    private static long ref(int chunk, int offset) {
+        return (((long) chunk << 32) | offset) + 1;
+    }
+
+    private ByteBuffer chunkOf(long ref) {
+        return this.chunks.get((int) ((ref - 1) >>> 32));
+    }
+
+    private static int offsetOf(long ref) {
+        return (int) (ref - 1);
+    }
+
+    private int slotHash(int i) {
+        return this.slots.getInt(i * slotBytes);
+    }
+
+    private long slotRef(int i) {
+        return this.slots.getLong(i * slotBytes + 4);
+    }
+
+    private void setSlot(int i, int h, long ref) {
+        this.slots.putInt(i * slotBytes, h);
+        this.slots.putLong(i * slotBytes + 4, ref);
+    }
+
+    // Compare the key with the key bytes of an entry in place.
+    private boolean keyEquals(long ref, byte[] k) {
+        ByteBuffer chunk = this.chunkOf(ref);
+        int off = offsetOf(ref);
+        if (chunk.getInt(off) != k.length) {
+            return false;
+        }
+        off += header;
+        for (int i = 0; i < k.length; i++) {
+            if (chunk.get(off + i) != k[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int entryBytes(long ref) {
+        ByteBuffer chunk = this.chunkOf(ref);
+        int off = offsetOf(ref);
+        return header + chunk.getInt(off) + chunk.getInt(off + 4);
+    }
+
+    private byte[] readKey(long ref) {
+        ByteBuffer chunk = this.chunkOf(ref);
+        int off = offsetOf(ref);
+        byte[] k = new byte[chunk.getInt(off)];
+        at(chunk, off + header).get(k);
+        return k;
+    }
+
+    private byte[] readValue(long ref) {
+        ByteBuffer chunk = this.chunkOf(ref);
+        int off = offsetOf(ref);
+        int klen = chunk.getInt(off);
+        byte[] v = new byte[chunk.getInt(off + 4)];
+        at(chunk, off + header + klen).get(v);
+        return v;
+    }
+
+    // View of a chunk positioned at the given offset, so bulk
+    // reads and writes leave the chunk's own position alone.
+    private static ByteBuffer at(ByteBuffer chunk, int off) {
+        ByteBuffer view = chunk.duplicate();
+        view.position(off);
+        return view;
+    }
+
+    // Append an entry to the arena and return its reference.
+    private long append(byte[] k, byte[] v) {
+        int need = header + k.length + v.length;
+        if (need < 0) {
+            throw new IllegalArgumentException("entry too large");
+        }
+
+        ByteBuffer chunk = this.chunks.isEmpty()
+            ? null : this.chunks.get(this.chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < need) {
+            chunk = ByteBuffer.allocateDirect(Math.max(need, this.chunkSize));
+            this.chunks.add(chunk);
+        }
+
+        int off = chunk.position();
+        chunk.putInt(k.length);
+        chunk.putInt(v.length);
+        chunk.put(k);
+        chunk.put(v);
+        this.liveBytes += need;
+        return ref(this.chunks.size() - 1, off);
+    }
+
+    // Slot of the key, or -1.
+    private int find(byte[] k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int h = hashVal(k);
+        int begin = h % this.capacity;
+        int check = begin;
+
+        for (int j = 1; j <= this.capacity; j++) {
+            long ref = this.slotRef(check);
+            if (ref == EMPTY) {
+                return -1;
+            } else if (ref != DELETED && this.slotHash(check) == h
+                    && this.keyEquals(ref, k)) {
+                return check;
+            }
+            check = (int) ((begin + (long) j * j) % this.capacity);
+        }
+        return -1;
+    }
+
+    // Put an entry reference known not to be mapped in the table.
+    private void place(int h, long ref) {
+        int begin = h % this.capacity;
+        int check = begin;
+
+        for (int j = 1; j <= this.capacity; j++) {
+            long exists = this.slotRef(check);
+            if (exists == EMPTY || exists == DELETED) {
+                if (exists == EMPTY) {
+                    this.used++;
+                }
+                this.setSlot(check, h, ref);
+                return;
+            }
+            check = (int) ((begin + (long) j * j) % this.capacity);
+        }
+        throw new IllegalStateException("no free slot");
+    }
+
+    // Rebuild the slot table, growing it unless it was mostly
+    // removed slots that filled it up.
+    private void resize() {
+        ByteBuffer temp = this.slots;
+        int oldCapacity = this.capacity;
+
+        int newSize = this.capacity;
+        if ((double) (this.size + 1) / this.capacity > loadFactor / 2) {
+            newSize = nextPrime(this.capacity);
+        }
+        this.slots = ByteBuffer.allocateDirect(tableBytes(newSize));
+        this.capacity = newSize;
+        this.used = 0;
+
+        for (int i = 0; i < oldCapacity; i++) {
+            long ref = temp.getLong(i * slotBytes + 4);
+            if (ref != EMPTY && ref != DELETED) {
+                this.place(temp.getInt(i * slotBytes), ref);
+            }
+        }
+        this.modCount++;
+    }
+
+    // Copy the live entries into fresh chunks once more than half
+    // of the arena is taken up by removed or replaced entries.
+    private void maybeCompact() {
+        if (this.deadBytes <= this.liveBytes
+                || this.deadBytes < this.chunkSize) {
+            return;
+        }
+
+        List<ByteBuffer> temp = this.chunks;
+        this.chunks = new ArrayList<>();
+        this.liveBytes = 0;
+        this.deadBytes = 0;
+
+        for (int i = 0; i < this.capacity; i++) {
+            long ref = this.slotRef(i);
+            if (ref != EMPTY && ref != DELETED) {
+                ByteBuffer chunk = temp.get((int) ((ref - 1) >>> 32));
+                int off = offsetOf(ref);
+                int len = header + chunk.getInt(off) + chunk.getInt(off + 4);
+                this.setSlot(i, this.slotHash(i), this.copy(chunk, off, len));
+            }
+        }
+        this.modCount++;
+    }
+
+    // Append raw entry bytes taken from an old chunk.
+    private long copy(ByteBuffer from, int off, int len) {
+        ByteBuffer chunk = this.chunks.isEmpty()
+            ? null : this.chunks.get(this.chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < len) {
+            chunk = ByteBuffer.allocateDirect(Math.max(len, this.chunkSize));
+            this.chunks.add(chunk);
+        }
+        int at = chunk.position();
+        ByteBuffer view = at(from, off);
+        view.limit(off + len);
+        chunk.put(view);
+        this.liveBytes += len;
+        return ref(this.chunks.size() - 1, at);
+    }
+
+    @Override
+    public void insert(byte[] k, byte[] v) throws IllegalArgumentException {
+        if (v == null) {
+            throw new IllegalArgumentException("cannot handle null value");
+        }
+        if (this.find(k) >= 0) {
+            throw new IllegalArgumentException("Key already in map");
+        }
+        if ((double) (this.used + 1) / this.capacity > loadFactor) {
+            this.resize();
+        }
+        this.place(hashVal(k), this.append(k, v));
+        this.size++;
+        this.modCount++;
+    }
+
+    @Override
+    public byte[] remove(byte[] k) throws IllegalArgumentException {
+        int i = this.find(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key");
+        }
+        long ref = this.slotRef(i);
+        byte[] temp = this.readValue(ref);
+
+        int len = this.entryBytes(ref);
+        this.liveBytes -= len;
+        this.deadBytes += len;
+        this.setSlot(i, 0, DELETED);
+        this.size--;
+        this.modCount++;
+        this.maybeCompact();
+        return temp;
+    }
+
+    @Override
+    public void put(byte[] k, byte[] v) throws IllegalArgumentException {
+        if (v == null) {
+            throw new IllegalArgumentException("cannot handle null value");
+        }
+        int i = this.find(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key");
+        }
+        long ref = this.slotRef(i);
+        ByteBuffer chunk = this.chunkOf(ref);
+        int off = offsetOf(ref);
+
+        // Same length values are overwritten in place, anything
+        // else gets a new entry and the old one becomes garbage.
+        if (chunk.getInt(off + 4) == v.length) {
+            at(chunk, off + header + k.length).put(v);
+            return;
+        }
+        int len = this.entryBytes(ref);
+        this.liveBytes -= len;
+        this.deadBytes += len;
+        this.setSlot(i, this.slotHash(i), this.append(k, v));
+        this.maybeCompact();
+    }
+
+    @Override
+    public byte[] get(byte[] k) throws IllegalArgumentException {
+        int i = this.find(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key");
+        }
+        return this.readValue(this.slotRef(i));
+    }
+
+    @Override
+    public boolean has(byte[] k) {
+        return k != null && this.find(k) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Bytes of off-heap memory held by the arena and slot table.
+     * @return bytes allocated.
+     */
+    public long offHeapBytes() {
+        long n = (long) this.capacity * slotBytes;
+        for (ByteBuffer chunk : this.chunks) {
+            n += chunk.capacity();
+        }
+        return n;
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new Iterator<byte[]>() {
+            private int expected = modCount;
+            private int next = this.advance(0);
+
+            private int advance(int i) {
+                while (i < capacity) {
+                    long ref = slotRef(i);
+                    if (ref != EMPTY && ref != DELETED) {
+                        break;
+                    }
+                    i++;
+                }
+                return i;
+            }
+
+            public boolean hasNext() {
+                return this.next < capacity;
+            }
+
+            public byte[] next() {
+                if (this.expected != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] k = readKey(slotRef(this.next));
+                this.next = this.advance(this.next + 1);
+                return k;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        for (int i = 0; i < this.capacity; i++) {
+            long ref = this.slotRef(i);
+            if (ref != EMPTY && ref != DELETED) {
+                s.append(Arrays.toString(this.readKey(ref)));
+                s.append(" : ");
+                s.append(Arrays.toString(this.readValue(ref)));
+                s.append(", ");
+            }
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+
+}
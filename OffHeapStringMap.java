@@ -0,0 +1,109 @@
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * String to String view over an OffHeapHashMap, encoding keys and
+ * values as UTF-8. Only the encoded bytes are stored, off heap;
+ * Strings are built only for the values (and keys) handed back.
+ */
+public class OffHeapStringMap implements Map<String, String> {
+
+    private final OffHeapHashMap bytes;
+
+    /**
+     * Default constructor.
+     */
+    public OffHeapStringMap() {
+        this(new OffHeapHashMap());
+    }
+
+    /**
+     * Constructor wrapping an existing byte map.
+     * @param bytes map to store the encoded pairs in.
+     */
+    public OffHeapStringMap(OffHeapHashMap bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("cannot handle null map");
+        }
+        this.bytes = bytes;
+    }
+
+    private static byte[] encode(String s) {
+        if (s == null) {
+            throw new IllegalArgumentException("cannot handle null string");
+        }
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decode(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void insert(String k, String v) throws IllegalArgumentException {
+        this.bytes.insert(encode(k), encode(v));
+    }
+
+    @Override
+    public String remove(String k) throws IllegalArgumentException {
+        return decode(this.bytes.remove(encode(k)));
+    }
+
+    @Override
+    public void put(String k, String v) throws IllegalArgumentException {
+        this.bytes.put(encode(k), encode(v));
+    }
+
+    @Override
+    public String get(String k) throws IllegalArgumentException {
+        return decode(this.bytes.get(encode(k)));
+    }
+
+    @Override
+    public boolean has(String k) {
+        return k != null && this.bytes.has(encode(k));
+    }
+
+    @Override
+    public int size() {
+        return this.bytes.size();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        Iterator<byte[]> it = this.bytes.iterator();
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return decode(it.next());
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        for (String k : this) {
+            s.append(k);
+            s.append(" : ");
+            s.append(this.get(k));
+            s.append(", ");
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+
+}
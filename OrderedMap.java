@@ -1,3 +1,5 @@
+import java.util.Iterator;
+
 
 
 /**
@@ -8,4 +10,100 @@
  */
 public interface OrderedMap<K extends Comparable<? super K>, V>
     extends Map<K, V> {
+
+    /**
+     * Smallest key.
+     *
+     * @return The smallest key, or null if the map is empty.
+     */
+    K first();
+
+    /**
+     * Largest key.
+     *
+     * @return The largest key, or null if the map is empty.
+     */
+    K last();
+
+    /**
+     * Greatest key less than or equal to a given key.
+     *
+     * @param k The key.
+     * @return The greatest key at most k, or null if there is none.
+     * @throws IllegalArgumentException If k is null.
+     */
+    K floor(K k) throws IllegalArgumentException;
+
+    /**
+     * Smallest key greater than or equal to a given key.
+     *
+     * @param k The key.
+     * @return The smallest key at least k, or null if there is none.
+     * @throws IllegalArgumentException If k is null.
+     */
+    K ceiling(K k) throws IllegalArgumentException;
+
+    /**
+     * Greatest key strictly less than a given key.
+     *
+     * @param k The key.
+     * @return The greatest key below k, or null if there is none.
+     * @throws IllegalArgumentException If k is null.
+     */
+    K lower(K k) throws IllegalArgumentException;
+
+    /**
+     * Smallest key strictly greater than a given key.
+     *
+     * @param k The key.
+     * @return The smallest key above k, or null if there is none.
+     * @throws IllegalArgumentException If k is null.
+     */
+    K higher(K k) throws IllegalArgumentException;
+
+    /**
+     * Keys in a range, in order.
+     *
+     * @param from Lowest key of the range (inclusive).
+     * @param to End of the range (exclusive).
+     * @return The keys k with from &lt;= k &lt; to.
+     * @throws IllegalArgumentException If from or to is null, or
+     *     from is greater than to.
+     */
+    Iterable<K> subMap(K from, K to) throws IllegalArgumentException;
+
+    /**
+     * Keys below a bound, in order.
+     *
+     * @param to End of the range (exclusive).
+     * @return The keys k with k &lt; to.
+     * @throws IllegalArgumentException If to is null.
+     */
+    Iterable<K> headMap(K to) throws IllegalArgumentException;
+
+    /**
+     * Keys from a bound on, in order.
+     *
+     * @param from Lowest key of the range (inclusive).
+     * @return The keys k with from &lt;= k.
+     * @throws IllegalArgumentException If from is null.
+     */
+    Iterable<K> tailMap(K from) throws IllegalArgumentException;
+
+    /**
+     * Remove a mapping if there is one. Unlike remove(), a
+     * missing key is not an error.
+     *
+     * @param k The key.
+     * @return The value k was mapped to, or null if it was not.
+     * @throws IllegalArgumentException If k is null.
+     */
+    V removeIfPresent(K k) throws IllegalArgumentException;
+
+    /**
+     * Keys in descending order.
+     *
+     * @return An iterator over the keys, largest first.
+     */
+    Iterator<K> descendingIterator();
 }
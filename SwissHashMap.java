@@ -0,0 +1,348 @@
+
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open addressing hashmap that probes a group of 8 slots at a time.
+ *
+ * Next to the key and value arrays there is one control byte per
+ * slot, packed 8 to a long: a free slot is EMPTY or DELETED (high
+ * bit set), a used slot holds the low 7 bits of its key's hash. A
+ * lookup compares all 8 control bytes of a group against those 7
+ * bits with a few word operations, and only reads keys (and calls
+ * equals()) where they match. Since a group is only passed over
+ * when it has no EMPTY slot, a miss usually ends in the first group.
+ *
+ * Capacity is a power of two, at least one group, and the table is
+ * rebuilt once 7/8 of it is used (by live or deleted slots).
+ * @param <K> Key values.
+ * @param <V> Values held.
+ */
+public class SwissHashMap<K, V> implements Map<K, V> {
+
+    private static final int groupWidth = 8;
+    private static final int startGroups = 2;
+
+    private static final int EMPTY = 0x80;
+    private static final int DELETED = 0xFE;
+    private static final int noSlot = Integer.MIN_VALUE;
+
+    private static final long lsbs = 0x0101010101010101L;
+    private static final long msbs = 0x8080808080808080L;
+    private static final long emptyWord = 0x8080808080808080L;
+
+    private long[] ctrl;
+    private Object[] keys;
+    private Object[] values;
+    private int groupMask;
+    private int size;
+    private int used;
+    private int modCount;
+
+    /**
+     * Default constructor.
+     */
+    public SwissHashMap() {
+        this.allocate(startGroups);
+    }
+
+    private void allocate(int groups) {
+        this.ctrl = new long[groups];
+        Arrays.fill(this.ctrl, emptyWord);
+        this.keys = new Object[groups * groupWidth];
+        this.values = new Object[groups * groupWidth];
+        this.groupMask = groups - 1;
+        this.size = 0;
+        this.used = 0;
+    }
+
+    private static int hash(Object k) {
+        int h = k.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Low 7 bits go in the control byte, the rest pick the group.
+    private static int h2(int h) {
+        return h & 0x7f;
+    }
+
+    private static int h1(int h) {
+        return h >>> 7;
+    }
+
+    // Bytes of the word equal to b, flagged by their high bit. May
+    // flag a byte just above a real match too, which the key
+    // comparison then rejects.
+    private static long match(long word, int b) {
+        long x = word ^ (lsbs * b);
+        return (x - lsbs) & ~x & msbs;
+    }
+
+    // EMPTY is the only control byte with the high bit set and
+    // bit 1 clear.
+    private static long matchEmpty(long word) {
+        return word & ~(word << 6) & msbs;
+    }
+
+    private static long matchFree(long word) {
+        return word & msbs;
+    }
+
+    private static long matchFull(long word) {
+        return ~word & msbs;
+    }
+
+    // Index within the group of the lowest flagged byte.
+    private static int lowest(long mask) {
+        return Long.numberOfTrailingZeros(mask) >>> 3;
+    }
+
+    private int ctrlAt(int slot) {
+        return (int) (this.ctrl[slot >>> 3] >>> ((slot & 7) << 3)) & 0xff;
+    }
+
+    private void setCtrl(int slot, int b) {
+        int shift = (slot & 7) << 3;
+        long word = this.ctrl[slot >>> 3];
+        this.ctrl[slot >>> 3] = (word & ~(0xffL << shift)) | ((long) b << shift);
+    }
+
+    /**
+     * Find the slot of the key, or, if it is not mapped, where
+     * it should be inserted.
+     * @param k key to look for.
+     * @param h its hash.
+     * @return slot if mapped, else -(insert slot + 1), or
+     *     noSlot if the table has no free slot at all.
+     */
+    private int find(K k, int h) {
+        int b = h2(h);
+        int group = h1(h) & this.groupMask;
+        int free = -1;
+
+        for (int step = 1; step <= this.groupMask + 1; step++) {
+            long word = this.ctrl[group];
+
+            for (long m = match(word, b); m != 0; m &= m - 1) {
+                int slot = group * groupWidth + lowest(m);
+                if (k.equals(this.keys[slot])) {
+                    return slot;
+                }
+            }
+
+            if (free < 0) {
+                long f = matchFree(word);
+                if (f != 0) {
+                    free = group * groupWidth + lowest(f);
+                }
+            }
+            if (matchEmpty(word) != 0) {
+                break;
+            }
+            // Triangular steps visit every group of a power of two.
+            group = (group + step) & this.groupMask;
+        }
+        return free < 0 ? noSlot : -(free + 1);
+    }
+
+    private int slotOf(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.find(k, hash(k));
+    }
+
+    // Rebuild the table, growing it unless deleted slots were
+    // what filled it up.
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        long[] oldCtrl = this.ctrl;
+        Object[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        int groups = this.groupMask + 1;
+
+        if (this.size + 1 > groups * groupWidth / 2) {
+            groups *= 2;
+        }
+        this.allocate(groups);
+
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            int c = (int) (oldCtrl[slot >>> 3] >>> ((slot & 7) << 3)) & 0xff;
+            if (c < EMPTY) {
+                K k = (K) oldKeys[slot];
+                int h = hash(k);
+                this.place(-(this.find(k, h) + 1), k, (V) oldValues[slot], h);
+            }
+        }
+        this.modCount++;
+    }
+
+    private void place(int slot, K k, V v, int h) {
+        if (this.ctrlAt(slot) == EMPTY) {
+            this.used++;
+        }
+        this.setCtrl(slot, h2(h));
+        this.keys[slot] = k;
+        this.values[slot] = v;
+        this.size++;
+    }
+
+    @Override
+    public void insert(K k, V v) throws IllegalArgumentException {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        int h = hash(k);
+        int i = this.find(k, h);
+        if (i >= 0) {
+            throw new IllegalArgumentException("Key already in map");
+        }
+        if (this.used + 1 > this.keys.length / 8 * 7) {
+            this.resize();
+            i = this.find(k, h);
+        }
+        this.place(-(i + 1), k, v, h);
+        this.modCount++;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(K k) throws IllegalArgumentException {
+        int i = this.slotOf(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        V temp = (V) this.values[i];
+        this.removeAt(i);
+        return temp;
+    }
+
+    private void removeAt(int slot) {
+        // A group that still has an EMPTY slot never sent a probe
+        // on to the next group, so the slot can be EMPTY again.
+        if (matchEmpty(this.ctrl[slot >>> 3]) != 0) {
+            this.setCtrl(slot, EMPTY);
+            this.used--;
+        } else {
+            this.setCtrl(slot, DELETED);
+        }
+        this.keys[slot] = null;
+        this.values[slot] = null;
+        this.size--;
+        this.modCount++;
+    }
+
+    @Override
+    public void put(K k, V v) throws IllegalArgumentException {
+        int i = this.slotOf(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        this.values[i] = v;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K k) throws IllegalArgumentException {
+        int i = this.slotOf(k);
+        if (i < 0) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
+        return (V) this.values[i];
+    }
+
+    @Override
+    public boolean has(K k) {
+        return k != null && this.slotOf(k) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(K k, V d) {
+        int i = this.slotOf(k);
+        return i < 0 ? d : (V) this.values[i];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new Iterator<K>() {
+            private int group = -1;
+            private long full;
+            private int last = -1;
+            private int expected = modCount;
+
+            {
+                this.advance();
+            }
+
+            // Find the next group with a used slot.
+            private void advance() {
+                while (this.full == 0 && ++this.group < ctrl.length) {
+                    this.full = matchFull(ctrl[this.group]);
+                }
+            }
+
+            public boolean hasNext() {
+                return this.full != 0;
+            }
+
+            @SuppressWarnings("unchecked")
+            public K next() {
+                if (this.expected != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                this.last = this.group * groupWidth + lowest(this.full);
+                this.full &= this.full - 1;
+                this.advance();
+                return (K) keys[this.last];
+            }
+
+            public void remove() {
+                if (this.last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (this.expected != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(this.last);
+                this.last = -1;
+                this.expected = modCount;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("{");
+
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.ctrlAt(slot) < EMPTY) {
+                s.append(this.keys[slot]);
+                s.append(" : ");
+                s.append(this.values[slot]);
+                s.append(", ");
+            }
+        }
+
+        int length = s.length();
+        if (length > 1) {
+            s.setLength(length - 2);
+        }
+
+        s.append("}");
+        return s.toString();
+    }
+
+}
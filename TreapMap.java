@@ -1,9 +1,16 @@
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.SplittableRandom;
 
 /**
  * Class to implement a TreapMap.
@@ -24,7 +31,7 @@ public class TreapMap<K extends Comparable<? super K>, V>
         K key;
         V value;
         int priority;
-        Random rd = new Random();
+        int count = 1;
 
         /**
          * Constructor for node for testing
@@ -53,7 +60,7 @@ public class TreapMap<K extends Comparable<? super K>, V>
             this.value = v;
             this.left = null;
             this.right = null;
-            this.priority = rd.nextInt();
+            this.priority = priorities.nextInt();
         }
 
         /**
@@ -66,9 +73,44 @@ public class TreapMap<K extends Comparable<? super K>, V>
 
     }
 
+    // Set operations on fewer nodes than this are not worth
+    // splitting into parallel tasks.
+    private static final int forkThreshold = 1 << 13;
+
+    // One generator for the whole map, rather than a Random
+    // (with its own atomic seed) in every node.
+    private final SplittableRandom priorities = new SplittableRandom();
+
+    /**
+     * What one update() or removeNow() did, handed back up
+     * the recursion.
+     */
+    private class Change {
+        V before;
+        V after;
+        Node removed;
+    }
+
     private Node root;
     private int size;
-    private StringBuilder stringBuilder;
+
+    // writeTo() hands its text on in pieces of about this size.
+    private static final int writeChunk = 1 << 13;
+
+    // Bumped whenever a key is added or removed, so that
+    // iterators can fail fast.
+    private int modCount;
+
+    // Adaptive lookups rotate hot nodes upwards; every so many
+    // of them all priorities age, see setAdaptive().
+    private static final int agingPeriod = 1 << 10;
+    private boolean adaptive;
+    private int accesses;
+
+    // Bumped whenever the tree is reshaped without adding or
+    // removing a key, so that iterators find their place again
+    // instead of failing.
+    private int shapeCount;
 
     /**
      * The size of the map.
@@ -160,10 +202,137 @@ public class TreapMap<K extends Comparable<? super K>, V>
         if (k == null) {
             throw new IllegalArgumentException("Cannot handle null key");
         }
-        Node n = this.findForSure(k);
+        Node n = this.adaptive ? this.access(k) : this.find(k);
+        if (n == null) {
+            throw new IllegalArgumentException("cannot find key " + k);
+        }
         return n.value;
     }
 
+    /**
+     * Switch access-adaptive priorities on or off. While on,
+     * every get() or getOrDefault() that finds its key draws a
+     * fresh random priority for the node and keeps it if higher,
+     * rotating the node up as far as the heap order then allows.
+     * A key looked up often thus holds the best of many draws and
+     * sits near the root. So that yesterday's hot keys do not stay
+     * there forever, after eight lookups per key every node gives
+     * up its priority for a new draw with even odds.
+     * Note that lookups then change the tree, so they need the
+     * same exclusion as any other update.
+     * @param on true to adapt to lookups, false for plain ones.
+     */
+    public void setAdaptive(boolean on) {
+        this.adaptive = on;
+        this.accesses = 0;
+    }
+
+    /**
+     * Adaptive lookup, see setAdaptive().
+     * @param k key being searched for.
+     * @return The node with that key, or null.
+     */
+    private Node access(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key.");
+        }
+
+        Node parent = null;
+        Node n = this.root;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp == 0) {
+                break;
+            }
+            parent = n;
+            n = cmp < 0 ? n.left : n.right;
+        }
+        if (n == null) {
+            return null;
+        }
+
+        int pri = this.priorities.nextInt();
+        if (pri > n.priority) {
+            n.priority = pri;
+            if (parent != null && pri > parent.priority) {
+                this.root = this.raise(this.root, k);
+            }
+        }
+        this.accesses += 1;
+        if (this.accesses >= Math.max(this.size * 8, agingPeriod)) {
+            this.age();
+        }
+        return n;
+    }
+
+    /**
+     * Rotate the node with key k up past every ancestor of
+     * lower priority.
+     * @param n The starting node (root).
+     * @param k key of the node whose priority went up.
+     * @return the new node and nodes above.
+     */
+    private Node raise(Node n, K k) {
+        int cmp = k.compareTo(n.key);
+        if (cmp == 0) {
+            return n;
+        } else if (cmp < 0) {
+            n.left = this.raise(n.left, k);
+        } else {
+            n.right = this.raise(n.right, k);
+        }
+
+        Node m = balanceFix(n);
+        if (m != n) {
+            this.shapeCount++;
+        }
+        return m;
+    }
+
+    /**
+     * Let every node redraw its priority with even odds, then
+     * rebuild the heap order in one in-order pass: each node
+     * takes the run of lower-priority nodes just before it as
+     * its left subtree (a Cartesian tree), so this is O(n).
+     */
+    private void age() {
+        ArrayDeque<Node> todo = new ArrayDeque<Node>();
+        ArrayDeque<Node> spine = new ArrayDeque<Node>();
+        Node n = this.root;
+        while (n != null || !todo.isEmpty()) {
+            while (n != null) {
+                todo.push(n);
+                n = n.left;
+            }
+            Node x = todo.pop();
+            n = x.right;
+
+            if (this.priorities.nextBoolean()) {
+                x.priority = this.priorities.nextInt();
+            }
+            Node last = null;
+            while (!spine.isEmpty() && spine.peek().priority < x.priority) {
+                last = spine.pop();
+                this.recount(last);
+            }
+            x.left = last;
+            x.right = null;
+            if (!spine.isEmpty()) {
+                spine.peek().right = x;
+            }
+            spine.push(x);
+        }
+
+        Node top = null;
+        while (!spine.isEmpty()) {
+            top = spine.pop();
+            this.recount(top);
+        }
+        this.root = top;
+        this.accesses = 0;
+        this.shapeCount++;
+    }
+
 
 
 
@@ -186,6 +355,7 @@ public class TreapMap<K extends Comparable<? super K>, V>
         }
         this.root = this.insertCheck(this.root, k, v);
         this.size += 1;
+        this.modCount++;
     }
 
     /**
@@ -228,9 +398,30 @@ public class TreapMap<K extends Comparable<? super K>, V>
         } else if (n.right != null && n.right.priority > n.priority) {
             n = leftRotate(n);
         }
+        this.recount(n);
         return n;
     }
 
+    /**
+     * Number of nodes in subtree.
+     * @param n head of subtree.
+     * @return node count.
+     */
+    private int count(Node n) {
+        if (n == null) {
+            return 0;
+        }
+        return n.count;
+    }
+
+    /**
+     * Recompute node count from the children.
+     * @param n node to fix.
+     */
+    private void recount(Node n) {
+        n.count = 1 + count(n.left) + count(n.right);
+    }
+
 
     /**
      * Find the largest node in left
@@ -255,6 +446,8 @@ public class TreapMap<K extends Comparable<? super K>, V>
         Node temp = n.right;
         n.right = temp.left;
         temp.left = n;
+        this.recount(n);
+        this.recount(temp);
         return temp;
     }
 
@@ -267,72 +460,188 @@ public class TreapMap<K extends Comparable<? super K>, V>
         Node temp = n.left;
         n.left = temp.right;
         temp.right = n;
+        this.recount(n);
+        this.recount(temp);
         return temp;
+
     }
 
     /**
      * Finding node to remove.
      * @param n node to start from (root)
      * @param k key of node being removed.
+     * @param c Gets the node removed, if any.
      * @return Nodes above.
-     * @throws IllegalArgumentException
      */
-    private Node removeNow(Node n, K k) throws IllegalArgumentException {
+    private Node removeNow(Node n, K k, Change c) {
         if (n == null) {
-            throw new IllegalArgumentException("cannot find key");
+            return null;
         }
 
         int cmp = k.compareTo(n.key);
         if (cmp < 0) {
-            n.left = this.removeNow(n.left, k);
+            n.left = this.removeNow(n.left, k, c);
         } else if (cmp > 0) {
-            n.right = this.removeNow(n.right, k);
+            n.right = this.removeNow(n.right, k, c);
         } else {
-            n = this.removeNode(n);
+            c.removed = n;
+            return this.removeNode(n);
         }
-        if (n != null) {
-            n = this.balanceFix(n);
+        if (c.removed != null) {
+            this.recount(n);
         }
         return n;
     }
 
     /**
-     * Method to remove the node.
+     * Method to remove the node. Joining its subtrees keeps the
+     * heap order, since the new top is one of them.
      * @param n Node to be removed.
      * @return New node in that position.
      */
     private Node removeNode(Node n) {
+        return this.join(n.left, n.right);
+    }
+
+    /**
+     * Get value of node, or a default if there is none.
+     * @param k The key.
+     * @param d Value to return if k is not mapped.
+     * @return Value of node, or d.
+     */
+    @Override
+    public V getOrDefault(K k, V d) {
+        Node n = this.adaptive ? this.access(k) : this.find(k);
+        return n == null ? d : n.value;
+    }
+
+    /**
+     * Insert a node unless the key is already mapped.
+     * @param k The key.
+     * @param v The value to be associated with k.
+     * @return Value already associated with k, or null.
+     */
+    @Override
+    public V putIfAbsent(K k, V v) {
+        return this.update(k, key -> v, (key, old) -> old != null ? old : v, true);
+    }
+
+    /**
+     * Get value of node, adding one with the computed value first
+     * if there is none.
+     * @param k The key.
+     * @param f Computes the value for an unmapped k.
+     * @return Value now associated with k, or null.
+     */
+    @Override
+    public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+        return this.update(k, f, (key, old) -> old != null ? old : f.apply(key), false);
+    }
 
-        // 0 and 1 child
-        if (n.left == null) {
-            return n.right;
+    /**
+     * Replace value of node by the one computed from it.
+     * @param k The key.
+     * @param f Computes the new value from k and the old value.
+     * @return Value now associated with k, or null.
+     */
+    @Override
+    public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.update(k, key -> f.apply(key, null), f, false);
+    }
 
+    /**
+     * Add a node, or combine the value of an existing one with v.
+     * @param k The key.
+     * @param v The value to insert or combine.
+     * @param f Combines the old value with v.
+     * @return Value now associated with k, or null.
+     */
+    @Override
+    public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+        return this.update(k, key -> v, (key, old) -> f.apply(old, v), false);
+    }
+
+    /**
+     * Single descent shared by the compound operations. A missing
+     * key gets a node holding absent's result, an existing one has
+     * its value replaced by present's result; a null result means
+     * no node.
+     * @param k The key.
+     * @param absent Value for a missing key.
+     * @param present New value for an existing key.
+     * @param before true to return the value before, else after.
+     * @return Value before or after the update, or null.
+     */
+    private V update(K k, Function<? super K, ? extends V> absent,
+                     BiFunction<? super K, ? super V, ? extends V> present,
+                     boolean before) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
         }
-        if (n.right == null) {
-            return n.left;
+        Change c = new Change();
+        this.root = this.update(this.root, k, absent, present, c);
+        return before ? c.before : c.after;
+    }
 
+    /**
+     * Recursive part of update().
+     * @param n The starting node (root).
+     * @param k key to look for.
+     * @param absent Value for a missing key.
+     * @param present New value for an existing key.
+     * @param c Gets the values before and after.
+     * @return new node and nodes above.
+     */
+    private Node update(Node n, K k, Function<? super K, ? extends V> absent,
+                        BiFunction<? super K, ? super V, ? extends V> present,
+                        Change c) {
+        if (n == null) {
+            int expected = this.modCount;
+            int shape = this.shapeCount;
+            c.after = absent.apply(k);
+            this.checkUnchanged(expected, shape);
+            if (c.after == null) {
+                return null;
+            }
+            this.size += 1;
+            this.modCount++;
+            return new Node(k, c.after);
+        }
+
+        int cmp = k.compareTo(n.key);
+        if (cmp < 0) {
+            n.left = this.update(n.left, k, absent, present, c);
+        } else if (cmp > 0) {
+            n.right = this.update(n.right, k, absent, present, c);
+        } else {
+            int expected = this.modCount;
+            int shape = this.shapeCount;
+            c.before = n.value;
+            c.after = present.apply(k, n.value);
+            this.checkUnchanged(expected, shape);
+            if (c.after == null) {
+                this.size -= 1;
+                this.modCount++;
+                return this.removeNode(n);
+            }
+            n.value = c.after;
+            return n;
         }
 
-        // 2 children
-        Node temp = n;
-        n = this.maxTree(n.left);
-        n.left = removeMax(temp.left);
-        n.right = temp.right;               //This part different
         return balanceFix(n);
     }
 
     /**
-     * Swapping node with max node in subtree.
-     * @param n node at head of subtree.
-     * @return max node.
+     * Compound operations must not have their functions reshape
+     * the tree, not even through adaptive lookups, since the nodes
+     * on the way down would no longer be linked as they were.
+     * @param expected modCount before the function ran.
+     * @param shape shapeCount before the function ran.
      */
-    private Node removeMax(Node n) {
-        if (n.right == null) {
-            return n.left;
+    private void checkUnchanged(int expected, int shape) {
+        if (this.modCount != expected || this.shapeCount != shape) {
+            throw new ConcurrentModificationException();
         }
-        n.right = removeMax(n.right);       //Till here
-        return balanceFix(n);
-
     }
 
     /**
@@ -342,57 +651,667 @@ public class TreapMap<K extends Comparable<? super K>, V>
      */
     @Override
     public V remove(K k) {
-        // Need this additional find() for the V return value, because the
-        // private remove() method cannot return that in addition to the new
-        // root. If we had been smarter and used a void return type, we would
-        // not need to do this extra work.
-        V v = this.findForSure(k).value;
-        this.root = this.removeNow(this.root, k);
+        return this.take(k, true);
+    }
+
+    /**
+     * Remove node if there is one.
+     * @param k The key.
+     * @return Value of removed node, or null if there was none.
+     */
+    @Override
+    public V removeIfPresent(K k) {
+        return this.take(k, false);
+    }
+
+    /**
+     * Single descent shared by remove() and removeIfPresent();
+     * removeNow() hands back the node it took out, so the value
+     * needs no separate find().
+     * @param k The key.
+     * @param sure true if a missing key is an error.
+     * @return Value of removed node, or null if there was none.
+     */
+    private V take(K k, boolean sure) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        Change c = new Change();
+        this.root = this.removeNow(this.root, k, c);
+        Node n = c.removed;
+        if (n == null) {
+            if (sure) {
+                throw new IllegalArgumentException("cannot find key " + k);
+            }
+            return null;
+        }
         this.size -= 1;
-        return v;
+        this.modCount++;
+        return n.value;
+    }
+
+    /**
+     * Smallest key in the map.
+     * @return smallest key, or null if empty.
+     */
+    @Override
+    public K first() {
+        if (this.root == null) {
+            return null;
+        }
+        Node n = this.root;
+        while (n.left != null) {
+            n = n.left;
+        }
+        return n.key;
+    }
+
+    /**
+     * Largest key in the map.
+     * @return largest key, or null if empty.
+     */
+    @Override
+    public K last() {
+        if (this.root == null) {
+            return null;
+        }
+        return this.maxTree(this.root).key;
+    }
+
+    @Override
+    public K floor(K k) {
+        return this.nearest(k, true, true);
+    }
+
+    @Override
+    public K ceiling(K k) {
+        return this.nearest(k, false, true);
+    }
+
+    @Override
+    public K lower(K k) {
+        return this.nearest(k, true, false);
     }
 
-    // Recursively add keys from subtree rooted at given node
-    // into the given list.
-    private void iteratorHelper(Node n, List<K> keys) {
+    @Override
+    public K higher(K k) {
+        return this.nearest(k, false, false);
+    }
+
+    /**
+     * Walk down towards k, remembering the last key passed
+     * on the wanted side of it.
+     * @param k key to start from.
+     * @param below true for keys below k, false for above.
+     * @param inclusive true if k itself counts.
+     * @return nearest key on that side, or null.
+     */
+    private K nearest(K k, boolean below, boolean inclusive) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        Node n = this.root;
+        K best = null;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp == 0 && inclusive) {
+                return n.key;
+            }
+            if (below ? cmp > 0 : cmp >= 0) {
+                if (below) {
+                    best = n.key;
+                }
+                n = n.right;
+            } else {
+                if (!below) {
+                    best = n.key;
+                }
+                n = n.left;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public Iterable<K> subMap(K from, K to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("from is greater than to");
+        }
+        return this.range(from, to);
+    }
+
+    @Override
+    public Iterable<K> headMap(K to) {
+        if (to == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.range(null, to);
+    }
+
+    @Override
+    public Iterable<K> tailMap(K from) {
+        if (from == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        return this.range(from, null);
+    }
+
+    /**
+     * Keys from lo (inclusive) to hi (exclusive), produced lazily,
+     * so stopping after k keys costs O(log n + k).
+     * @param lo lower bound, or null for none.
+     * @param hi upper bound, or null for none.
+     * @return keys in order.
+     */
+    private Iterable<K> range(K lo, K hi) {
+        return () -> new KeyIterator(lo, hi, false);
+    }
+
+    /**
+     * Number of keys smaller than k, found from subtree
+     * counts in one descent.
+     * @param k The key (need not be mapped).
+     * @return rank of k.
+     */
+    public int rank(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        Node n = this.root;
+        int r = 0;
+        while (n != null) {
+            int cmp = k.compareTo(n.key);
+            if (cmp <= 0) {
+                n = n.left;
+            } else {
+                r += count(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Key with the given rank, i.e. the (i+1)-th smallest.
+     * @param i rank, from 0 to size() - 1.
+     * @return key with rank i.
+     */
+    public K select(int i) {
+        if (i < 0 || i >= this.size) {
+            throw new IllegalArgumentException("rank out of range " + i);
+        }
+
+        Node n = this.root;
+        while (true) {
+            int left = count(n.left);
+            if (i < left) {
+                n = n.left;
+            } else if (i > left) {
+                i -= left + 1;
+                n = n.right;
+            } else {
+                return n.key;
+            }
+        }
+    }
+
+    /**
+     * Number of keys from lo (inclusive) to hi (exclusive),
+     * the same range subMap(lo, hi) gives.
+     * @param lo lower bound.
+     * @param hi upper bound.
+     * @return count of keys in range.
+     */
+    public int countInRange(K lo, K hi) {
+        if (lo == null || hi == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+        if (lo.compareTo(hi) >= 0) {
+            return 0;
+        }
+        return this.rank(hi) - this.rank(lo);
+    }
+
+    /**
+     * Pieces of a subtree split around a key: the nodes below it,
+     * the node holding it (if any, with no children left), and
+     * the nodes above it.
+     */
+    private class Split {
+        Node left;
+        Node equal;
+        Node right;
+    }
+
+    /**
+     * Split a subtree around a key, reusing its nodes. Takes
+     * time proportional to the depth of the key.
+     * @param n head of subtree.
+     * @param k key to split at.
+     * @return the pieces.
+     */
+    private Split split(Node n, K k) {
         if (n == null) {
-            return;
+            return new Split();
+        }
+
+        Split s;
+        int cmp = k.compareTo(n.key);
+        if (cmp < 0) {
+            s = this.split(n.left, k);
+            n.left = s.right;
+            s.right = n;
+        } else if (cmp > 0) {
+            s = this.split(n.right, k);
+            n.right = s.left;
+            s.left = n;
+        } else {
+            s = new Split();
+            s.left = n.left;
+            s.right = n.right;
+            s.equal = n;
+            n.left = null;
+            n.right = null;
+        }
+        this.recount(n);
+        return s;
+    }
+
+    /**
+     * Join two subtrees where every key of a is smaller than
+     * every key of b, keeping the higher priority on top.
+     * @param a head of the lower subtree.
+     * @param b head of the upper subtree.
+     * @return head of the joined subtree.
+     */
+    private Node join(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+
+        if (a.priority > b.priority) {
+            a.right = this.join(a.right, b);
+            this.recount(a);
+            return a;
         }
-        this.iteratorHelper(n.left, keys);
-        keys.add(n.key);
-        this.iteratorHelper(n.right, keys);
+        b.left = this.join(a, b.left);
+        this.recount(b);
+        return b;
     }
 
-    //Return new iterator of arraylist.
+    /**
+     * Move all keys at or above k into a new map. Takes expected
+     * O(log n) time, since only the path to k is restructured.
+     * @param k key to split at (need not be mapped).
+     * @return map of the keys at least k.
+     */
+    public TreapMap<K, V> split(K k) {
+        if (k == null) {
+            throw new IllegalArgumentException("cannot handle null key");
+        }
+
+        Split s = this.split(this.root, k);
+        TreapMap<K, V> upper = new TreapMap<K, V>();
+        upper.root = this.join(s.equal, s.right);
+        upper.size = count(upper.root);
+        this.root = s.left;
+        this.size = count(this.root);
+        this.modCount++;
+        return upper;
+    }
+
+    /**
+     * Move all keys of other, which must all be greater than the
+     * keys of this map, into this map in expected O(log n) time.
+     * Leaves other empty.
+     * @param other map to append.
+     * @throws IllegalArgumentException if the key ranges overlap.
+     */
+    public void join(TreapMap<K, V> other) throws IllegalArgumentException {
+        if (other == this) {
+            throw new IllegalArgumentException("cannot join map with itself");
+        }
+        if (this.size > 0 && other.size > 0
+                && this.last().compareTo(other.first()) >= 0) {
+            throw new IllegalArgumentException("keys of joined map must be greater");
+        }
+
+        this.root = this.join(this.root, other.root);
+        this.size = count(this.root);
+        this.modCount++;
+        other.clearNodes();
+    }
+
+    /**
+     * Add all keys of other that are not in this map. Keys in both
+     * keep the value from this map. Nodes of other are reused, so
+     * other is left empty.
+     * @param other map to merge in.
+     */
+    public void union(TreapMap<K, V> other) {
+        this.combine(SetOp.UNION, other);
+    }
+
+    /**
+     * Keep only the keys that are also in other, with the values
+     * from this map. Leaves other empty.
+     * @param other map to intersect with.
+     */
+    public void intersection(TreapMap<K, V> other) {
+        this.combine(SetOp.INTERSECTION, other);
+    }
+
+    /**
+     * Remove all keys that are in other. Leaves other empty.
+     * @param other map of keys to remove.
+     */
+    public void difference(TreapMap<K, V> other) {
+        this.combine(SetOp.DIFFERENCE, other);
+    }
+
+    /**
+     * Set operations done by combine().
+     */
+    private enum SetOp { UNION, INTERSECTION, DIFFERENCE }
+
+    /**
+     * Replace this map's nodes by the result of a set operation
+     * with the nodes of other.
+     * @param op operation.
+     * @param other second operand, emptied.
+     */
+    private void combine(SetOp op, TreapMap<K, V> other) {
+        if (other == this) {
+            throw new IllegalArgumentException("cannot combine map with itself");
+        }
+
+        SetTask task = new SetTask(op, this.root, other.root);
+        if (this.size + other.size >= forkThreshold) {
+            this.root = ForkJoinPool.commonPool().invoke(task);
+        } else {
+            this.root = task.compute();
+        }
+        this.size = count(this.root);
+        this.modCount++;
+        other.clearNodes();
+    }
+
+    /**
+     * Drop all nodes, for a map whose nodes were taken over.
+     */
+    private void clearNodes() {
+        this.root = null;
+        this.size = 0;
+        this.modCount++;
+    }
+
+    /**
+     * Divide and conquer set operation on two subtrees a (from this
+     * map) and b: the root with the higher priority stays on top,
+     * the other subtree is split at its key, and both sides are
+     * combined recursively. That takes O(m log(n/m + 1)) work for
+     * subtrees of sizes m &lt;= n, and since the two sides share no
+     * nodes, large ones are done as parallel tasks.
+     * @param op operation.
+     * @param a head of subtree from this map.
+     * @param b head of subtree from other map.
+     * @return head of the combined subtree.
+     */
+    private Node combine(SetOp op, Node a, Node b) {
+        if (a == null || b == null) {
+            if (op == SetOp.UNION) {
+                return a == null ? b : a;
+            }
+            return op == SetOp.DIFFERENCE ? a : null;
+        }
+
+        boolean fork = count(a) + count(b) >= forkThreshold;
+        boolean mine = true;
+        if (op != SetOp.DIFFERENCE && a.priority < b.priority) {
+            Node temp = a;
+            a = b;
+            b = temp;
+            mine = false;
+        }
+        Split s = this.split(b, a.key);
+
+        Node left;
+        Node right;
+        if (fork) {
+            SetTask task = new SetTask(op, mine ? a.left : s.left, mine ? s.left : a.left);
+            task.fork();
+            right = this.combine(op, mine ? a.right : s.right, mine ? s.right : a.right);
+            left = task.join();
+        } else {
+            left = this.combine(op, mine ? a.left : s.left, mine ? s.left : a.left);
+            right = this.combine(op, mine ? a.right : s.right, mine ? s.right : a.right);
+        }
+
+        // Keys only in one operand survive a union; keys in both
+        // survive an intersection, with this map's value.
+        boolean keep = op == SetOp.UNION || (s.equal != null) == (op == SetOp.INTERSECTION);
+        if (!keep) {
+            return this.join(left, right);
+        }
+        if (!mine && s.equal != null) {
+            a.value = s.equal.value;
+        }
+        a.left = left;
+        a.right = right;
+        this.recount(a);
+        return a;
+    }
+
+    /**
+     * One combine() call run on a ForkJoinPool.
+     */
+    private class SetTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final SetOp op;
+        private final Node a;
+        private final Node b;
+
+        SetTask(SetOp op, Node a, Node b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        protected Node compute() {
+            return combine(this.op, this.a, this.b);
+        }
+    }
+
+    /**
+     * Keys in ascending order. The iterator keeps only the path
+     * to the next node, so it costs O(height) memory, and fails
+     * fast if keys are added or removed other than through it.
+     * Adaptive lookups only make it find its place again.
+     * @return iterator over keys.
+     */
     @Override
     public Iterator<K> iterator() {
-        List<K> keys = new ArrayList<K>();
-        this.iteratorHelper(this.root, keys);
-        return keys.iterator();
+        return new KeyIterator(null, null, false);
     }
 
-    // If we don't have a StringBuilder yet, make one;
-    // otherwise just reset it back to a clean slate.
-    private void setupStringBuilder() {
-        if (this.stringBuilder == null) {
-            this.stringBuilder = new StringBuilder();
-        } else {
-            this.stringBuilder.setLength(0);
+    /**
+     * Keys in descending order.
+     * @return iterator over keys, largest first.
+     */
+    @Override
+    public Iterator<K> descendingIterator() {
+        return new KeyIterator(null, null, true);
+    }
+
+    /**
+     * Lazy in-order iterator over the keys from lo (inclusive)
+     * to hi (exclusive), using an explicit stack of the nodes
+     * still to be visited on the path from the root.
+     */
+    private class KeyIterator implements Iterator<K> {
+        private final ArrayDeque<Node> stack;
+        private final K lo;
+        private final K hi;
+        private final boolean descending;
+        private int expected;
+        private int shape;
+        private K last;
+        private K resume;
+
+        /**
+         * Start an iteration.
+         * @param lo lower bound, or null for none.
+         * @param hi upper bound, or null for none.
+         * @param descending true to go from largest to smallest.
+         */
+        KeyIterator(K lo, K hi, boolean descending) {
+            this.stack = new ArrayDeque<Node>();
+            this.lo = lo;
+            this.hi = hi;
+            this.descending = descending;
+            this.expected = modCount;
+            this.restart();
+        }
+
+        /**
+         * Stack the path from the root to the next key, after
+         * the last one returned if any.
+         */
+        private void restart() {
+            this.shape = shapeCount;
+            this.stack.clear();
+            if (this.resume != null) {
+                this.seek(this.resume, false);
+            } else if (this.descending) {
+                this.seek(this.hi, false);
+            } else {
+                this.seek(this.lo, true);
+            }
+        }
+
+        /**
+         * Stack the path to the first key at or past from, in
+         * iteration order.
+         * @param from key to start at, or null for the very first.
+         * @param inclusive true if from itself may come next.
+         */
+        private void seek(K from, boolean inclusive) {
+            Node n = root;
+            while (n != null) {
+                int cmp = from == null ? 0 : n.key.compareTo(from);
+                if (this.descending) {
+                    cmp = -cmp;
+                }
+                if (from == null || cmp > 0 || (cmp == 0 && inclusive)) {
+                    this.stack.push(n);
+                    n = this.descending ? n.right : n.left;
+                } else {
+                    n = this.descending ? n.left : n.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.stack.isEmpty()) {
+                return false;
+            }
+            K k = this.stack.peek().key;
+            return this.descending
+                ? this.lo == null || k.compareTo(this.lo) >= 0
+                : this.hi == null || k.compareTo(this.hi) < 0;
+        }
+
+        @Override
+        public K next() {
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (this.shape != shapeCount) {
+                // The next key is still on top, but the path
+                // below it may have been rotated.
+                this.restart();
+            }
+
+            Node n = this.stack.pop();
+            Node m = this.descending ? n.left : n.right;
+            while (m != null) {
+                this.stack.push(m);
+                m = this.descending ? m.right : m.left;
+            }
+            this.last = n.key;
+            this.resume = n.key;
+            return n.key;
+        }
+
+        @Override
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            if (this.expected != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            // Removal may rotate the nodes on our stack, so find
+            // the way back from the root.
+            TreapMap.this.remove(this.last);
+            this.expected = modCount;
+            this.restart();
+            this.last = null;
         }
     }
 
-    // Recursively append string representations of keys and
-    // values from subtree rooted at given node.
-    private void toStringHelper(Node n, StringBuilder s) {
-        if (n == null) {
-            return;
+    /**
+     * Write the map out as toString() would, walking the nodes in
+     * order and handing the text to out in pieces of about
+     * writeChunk chars, so a huge map never has to fit in one
+     * string.
+     * @param out where the text goes.
+     * @throws IOException if out does.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        StringBuilder s = new StringBuilder(writeChunk);
+        s.append("{");
+
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        Node n = this.root;
+        boolean first = true;
+        while (n != null || !stack.isEmpty()) {
+            while (n != null) {
+                stack.push(n);
+                n = n.left;
+            }
+            n = stack.pop();
+            if (!first) {
+                s.append(", ");
+            }
+            first = false;
+            s.append(n.key);
+            s.append(": ");
+            s.append(n.value);
+            if (s.length() >= writeChunk) {
+                out.append(s);
+                s.setLength(0);
+            }
+            n = n.right;
         }
-        this.toStringHelper(n.left, s);
-        s.append(n.key);
-        s.append(": ");
-        s.append(n.value);
-        s.append(", ");
-        this.toStringHelper(n.right, s);
+
+        s.append("}");
+        out.append(s);
     }
 
     /**
@@ -401,20 +1320,14 @@ public class TreapMap<K extends Comparable<? super K>, V>
      */
     @Override
     public String toString() {
-        this.setupStringBuilder();
-        this.stringBuilder.append("{");
-
-        this.toStringHelper(this.root, this.stringBuilder);
-
-        int length = this.stringBuilder.length();
-        if (length > 1) {
-            // If anything was appended at all, get rid of
-            // the last ", " the toStringHelper put in.
-            this.stringBuilder.setLength(length - 2);
+        StringBuilder s = new StringBuilder();
+        try {
+            this.writeTo(s);
+        } catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new UncheckedIOException(e);
         }
-        this.stringBuilder.append("}");
-
-        return this.stringBuilder.toString();
+        return s.toString();
     }
 
     /**
@@ -466,6 +1379,7 @@ public class TreapMap<K extends Comparable<? super K>, V>
         }
         this.root = this.insertPriCheck(this.root, k, v, pri);
         this.size += 1;
+        this.modCount++;
     }
 
     /**